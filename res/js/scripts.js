@@ -241,20 +241,178 @@ function toggleSidebarDisplay() {
     sidebar.style.display = (dis === "none") ? "block" : "none";
 }
 
-function searchUsers() {
-    var field = document.getElementById("SearchField");
-    document.getElementById("ClearUserSearchFieldButton").style.display = (field.value === "") ? "none" : "inline-block";
+function parseUserEntries(html) {
+    var template = document.createElement("template");
+    template.innerHTML = html.trim();
+    return Array.prototype.slice.call(template.content.children);
+}
+
+function findUserEntry(uname) {
+    return document.getElementById("UserListEntry-" + uname);
+}
+
+function setUsersList(html) {
     var list = document.getElementById("UsersList");
-    var children = list.childNodes;
-    for (i = 0; i < children.length; i++) {
-        if (children[i].id === undefined) {
-            console.log(children[i]);
-            continue;
+    list.innerHTML = '';
+    appendUsersPage(html);
+}
+
+function appendUsersPage(html) {
+    var list = document.getElementById("UsersList");
+    parseUserEntries(html).forEach(function (entry) {
+        if (document.getElementById(entry.id) === null) {
+            list.appendChild(entry);
         }
-        if (children[i].id.toLowerCase().includes(field.value.toLowerCase())) {
-            children[i].style.removeProperty("display");
-        } else {
-            children[i].style.display = "none";
+    });
+}
+
+function showUsersSearchResults(html) {
+    var results = document.getElementById("UsersSearchResults");
+    results.innerHTML = '';
+    parseUserEntries(html).forEach(function (entry) {
+        // results are a transient copy, only the entries of the list are addressed by id
+        entry.removeAttribute("id");
+        results.appendChild(entry);
+    });
+    results.style.removeProperty("display");
+    document.getElementById("UsersList").style.display = "none";
+}
+
+function hideUsersSearchResults() {
+    var results = document.getElementById("UsersSearchResults");
+    results.innerHTML = '';
+    results.style.display = "none";
+    document.getElementById("UsersList").style.removeProperty("display");
+}
+
+function setUnreadCount(uname, count) {
+    var entry = findUserEntry(uname);
+    if (entry === null) {
+        return false;
+    }
+    var badge = entry.getElementsByClassName("SidebarEntryUnreadCount")[0];
+    badge.innerHTML = count;
+    if (count === 0 || entry.classList.contains("SidebarEntryActive")) {
+        badge.style.display = "none";
+    } else {
+        badge.style.removeProperty("display");
+    }
+    return true;
+}
+
+function setActiveUser(uname) {
+    var list = document.getElementById("UsersList");
+    var active = list.getElementsByClassName("SidebarEntryActive");
+    while (active.length > 0) {
+        active[0].classList.remove("SidebarEntryActive");
+    }
+    var entry = findUserEntry(uname);
+    if (entry === null) {
+        return false;
+    }
+    entry.classList.add("SidebarEntryActive");
+    setUnreadCount(uname, 0);
+    return true;
+}
+
+function addPinnedUserEntry(html) {
+    var list = document.getElementById("UsersList");
+    var entry = parseUserEntries(html)[0];
+    removeUserEntry(entry.getAttribute("data-username"));
+    var pinned = list.getElementsByClassName("SidebarEntryPinned");
+    var after = (pinned.length === 0) ? null : pinned[pinned.length - 1];
+    list.insertBefore(entry, (after === null) ? list.firstChild : after.nextSibling);
+}
+
+function addUserEntry(html, hasMorePages) {
+    var list = document.getElementById("UsersList");
+    var entry = parseUserEntries(html)[0];
+    removeUserEntry(entry.getAttribute("data-username"));
+    var name = entry.getAttribute("data-name");
+    var children = list.children;
+    var before = null;
+    // pinned entries come first, the rest are sorted by name
+    for (i = 0; i < children.length; i++) {
+        if (!children[i].classList.contains("SidebarEntryPinned") && children[i].getAttribute("data-name") > name) {
+            before = children[i];
+            break;
         }
     }
-}
\ No newline at end of file
+    if (before === null && hasMorePages) {
+        // belongs to a page which is not loaded yet
+        return;
+    }
+    list.insertBefore(entry, before);
+}
+
+function removeUserEntry(uname) {
+    var entry = findUserEntry(uname);
+    if (entry !== null) {
+        entry.parentNode.removeChild(entry);
+    }
+}
+
+function reloadPreviews(fileId) {
+    var images = document.querySelectorAll("img[data-preview='" + fileId + "']");
+    for (var i = 0; i < images.length; i++) {
+        // the placeholder redirect is not cached, but the image url may be
+        images[i].srcset = images[i].srcset.replace(/size=(\d+)/g, "size=$1&v=1");
+        images[i].src = images[i].src.replace(/size=(\d+)$/, "size=$1&v=1");
+    }
+}
+// fills the chat-msg-left/right pages the server put in the user page, slots are written as {{name}}
+function renderMessage(m) {
+    var image = "";
+    if (m.file !== undefined) {
+        var src = "image-file-preview/" + m.file + "?size=";
+        image = m.image
+            ? '<img src="' + src + '500" srcset="' + src + '500 1x, ' + src + '1000 2x" data-preview="' + m.file + '" class="ChatImgFileMsgAttachment"/>'
+            : '<img src="attachment.svg" class="ChatFileMsgAttachmentSvg"/>';
+    }
+    var values = {
+        id: m.id,
+        date: 'date="' + m.date + '" seq="' + m.seq + '"' + (m.pending ? ' data-pending' : ''),
+        onclick: (m.file !== undefined) ? " onclick='download(\"" + m.file + "\")' " : "",
+        title: m.sender,
+        image: image,
+        body: m.body,
+        dateStr: m.dateStr
+    };
+    var template = document.getElementById(m.self ? "ChatMsgRight" : "ChatMsgLeft").textContent;
+    // one pass over the template, so values are never read as slots
+    return template.replace(/\{\{(\w+)\}\}/g, function (match, name) {
+        return values[name];
+    });
+}
+
+// messages of the compact protocol are JSON records, rendered to the same markup the server sends otherwise
+function messagesHtml(body) {
+    if (ws.protocol !== compactProtocol) {
+        return body;
+    }
+    var records = JSON.parse(body);
+    if (!Array.isArray(records)) {
+        records = [records];
+    }
+    var html = "";
+    for (var i = 0; i < records.length; i++) {
+        html += renderMessage(records[i]);
+    }
+    return html;
+}
+
+// a "batch" frame carries several frames, each one prefixed by its length and a new line
+function splitFrames(data) {
+    if (data.lastIndexOf("batch\n", 0) !== 0) {
+        return [data];
+    }
+    var frames = [];
+    var i = "batch\n".length;
+    while (i < data.length) {
+        var sep = data.indexOf("\n", i);
+        var length = parseInt(data.substring(i, sep));
+        frames.push(data.substr(sep + 1, length));
+        i = sep + 1 + length;
+    }
+    return frames;
+}
@@ -17,10 +17,15 @@ import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 import simplechat.config.HttpInterceptor;
 import simplechat.model.User;
+import simplechat.repository.AccountDeletions;
+import simplechat.repository.MessageRepository;
+import simplechat.repository.UnreadCounters;
+import simplechat.repository.UserDirectory;
 import simplechat.repository.UserRepository;
 import simplechat.util.ByteUtils;
 
 import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
 
 @SpringBootApplication
 @EnableScheduling
@@ -43,6 +48,18 @@ public class SimpleChatApplication implements ApplicationContextAware {
     @Autowired
     private ByteUtils byteUtils;
 
+    @Autowired
+    private UserDirectory userDirectory;
+
+    @Autowired
+    private UnreadCounters unreadCounters;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private AccountDeletions accountDeletions;
+
     private static ApplicationContext context;
 
     public static void main(String[] args) {
@@ -81,6 +98,10 @@ public class SimpleChatApplication implements ApplicationContextAware {
             u2.setLastname("Zhiany");
             userRepository.save(u2);
         }
+        messageRepository.backfillHistoryKeys(1000);
+        unreadCounters.migrateLegacyCounters();
+        userDirectory.refresh();
+        accountDeletions.resume();
     }
 
     @Override
@@ -110,7 +131,13 @@ public class SimpleChatApplication implements ApplicationContextAware {
 
     @Bean(name = "multipartResolver")
     public CommonsMultipartResolver multipartResolver() {
-        CommonsMultipartResolver multipartResolver = new CommonsMultipartResolver();
+        CommonsMultipartResolver multipartResolver = new CommonsMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                // uploads are parsed while streaming by UploadReceiver
+                return !"/uploadFile".equals(request.getRequestURI()) && super.isMultipart(request);
+            }
+        };
         multipartResolver.setMaxUploadSize(10000000000l);
         return multipartResolver;
     }
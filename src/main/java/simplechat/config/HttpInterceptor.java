@@ -1,27 +1,30 @@
 package simplechat.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.MediaType;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.ModelAndView;
 import simplechat.SimpleChatApplication;
-import simplechat.model.FileInfo;
+import simplechat.controller.Previews;
 import simplechat.model.Session;
 import simplechat.model.User;
-import simplechat.repository.FileInfoRepository;
 import simplechat.repository.SessionRepository;
 import simplechat.repository.UserRepository;
 import simplechat.util.ByteUtils;
+import simplechat.util.StaticAssets;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class HttpInterceptor implements HandlerInterceptor {
@@ -36,11 +39,18 @@ public class HttpInterceptor implements HandlerInterceptor {
     private ByteUtils byteUtils;
 
     @Autowired
-    private FileInfoRepository fileInfoRepository;
+    private StaticAssets staticAssets;
+
+    @Autowired
+    private Previews previews;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     private Set<String> allowedUrls = new HashSet<>();
-    private Set<String> allowedFiles = new HashSet<>();
     private Set<String> htmlFiles = new HashSet<>();
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Timer> stageTimers = new ArrayList<>();
 
     public HttpInterceptor() {
         allowedUrls.add("/");
@@ -50,18 +60,6 @@ public class HttpInterceptor implements HandlerInterceptor {
         allowedUrls.add("/signup");
         allowedUrls.add("/signup-helper");
 
-        for (String filename : Objects.requireNonNull(new File(SimpleChatApplication.imageResourcePath).list())) {
-            allowedFiles.add("/" + filename);
-        }
-        for (String filename : Objects.requireNonNull(new File(SimpleChatApplication.styleResourcePath).list())) {
-            allowedFiles.add("/" + filename);
-        }
-        for (String filename : Objects.requireNonNull(new File(SimpleChatApplication.scriptResourcePath).list())) {
-            allowedFiles.add("/" + filename);
-        }
-        for (String filename : Objects.requireNonNull(new File(SimpleChatApplication.miscResourcePath).list())) {
-            allowedFiles.add("/" + filename);
-        }
         for (String filename : Objects.requireNonNull(new File(SimpleChatApplication.pageResourcePath).list())) {
             htmlFiles.add("/" + filename);
         }
@@ -81,6 +79,19 @@ public class HttpInterceptor implements HandlerInterceptor {
         }
     }
 
+    /**
+     * Puts the message fragments with "{{name}}" in each slot, the client fills them with the records of the
+     * compact protocol, so both protocols render from the same pages.
+     */
+    private void putMessageTemplates(Map<String, String> params) throws IOException {
+        Map<String, String> slots = new HashMap<>();
+        for (String name : new String[]{"id", "date", "onclick", "title", "image", "body", "dateStr"}) {
+            slots.put(name, "{{" + name + "}}");
+        }
+        params.put("chatMsgLeft", byteUtils.readPage("/chat-msg-left.html", slots));
+        params.put("chatMsgRight", byteUtils.readPage("/chat-msg-right.html", slots));
+    }
+
     private Properties getPropertiesFromCookies(Cookie cookie[]) {
         if (cookie == null) {
             return null;
@@ -97,7 +108,7 @@ public class HttpInterceptor implements HandlerInterceptor {
             if (cookies.containsKey("username") && cookies.containsKey("password")) {
                 User dbUser = userRepository.findByUsername("" + cookies.get("username"));
                 if ((dbUser != null) && dbUser.getPassword().equals(cookies.get("password"))) {
-                    session.setUser(dbUser);
+                    sessionRepository.setUser(session, dbUser);
                 }
             }
         }
@@ -114,96 +125,115 @@ public class HttpInterceptor implements HandlerInterceptor {
                 String password = cred.substring(cred.indexOf(":") + 1, cred.length());
                 User dbUser = userRepository.findByUsername(username);
                 if ((dbUser != null) && dbUser.getPassword().equals(byteUtils.hash(password))) {
-                    session.setUser(dbUser);
+                    sessionRepository.setUser(session, dbUser);
                 }
             }
         }
     }
 
-    @Scheduled(fixedRate = 3600000, initialDelay = 3600000)
-    public void clearExpiredSessions() {
-        List<Session> expired = sessionRepository.findExpired(System.currentTimeMillis() - 3600000);
-        sessionRepository.deleteAll(expired);
+    /**
+     * Requests pass the stages in order until one of them answers, the time spent in each stage is published
+     * as the "simplechat.http.prehandle" timer tagged with the stage. Static assets and previews are served
+     * before anything touches the session or the database.
+     */
+    @PostConstruct
+    public void init() {
+        stage("assets", this::serveAsset);
+        stage("previews", this::servePreview);
+        stage("session", this::touchSession);
+        stage("login", this::login);
+        stage("access", this::checkAccess);
+        stage("page", this::servePage);
+    }
+
+    private void stage(String name, Stage stage) {
+        stages.add(stage);
+        stageTimers.add(meterRegistry.timer("simplechat.http.prehandle", "stage", name));
     }
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
-        String uri = request.getRequestURI();
-        HttpSession httpSession = request.getSession();
-
-        Session session = sessionRepository.findById(httpSession.getId()).orElse(null);
-        if (session == null) {
-            session = new Session(httpSession.getId(), null, System.currentTimeMillis());
-        }
-        session.setLastModified(System.currentTimeMillis());
-        sessionRepository.save(session);
-
-        loginWithBasicAuth(request, httpSession, session);
-        loginWithCookies(getPropertiesFromCookies(request.getCookies()), session);
-
-        if (allowedFiles.contains(uri)) {
-            String uriLC = uri.toLowerCase();
-            if (uriLC.endsWith(".svg")) {
-                response.setContentType("image/svg+xml");
-                response.getOutputStream().write(byteUtils.readBytes(new File((SimpleChatApplication.imageResourcePath + "/" + uri)), false));
-            } else if (uriLC.endsWith(".css")) {
-                response.setContentType("text/css");
-                response.getOutputStream().write(byteUtils.readBytes(new File((SimpleChatApplication.styleResourcePath + "/" + uri)), false));
-            } else if (uriLC.endsWith(".json")) {
-                response.setContentType("application/json");
-                response.getOutputStream().write(byteUtils.readBytes(new File((SimpleChatApplication.miscResourcePath + "/" + uri)), false));
-            } else if (uriLC.endsWith(".js")) {
-                response.setContentType("text/javascript");
-                response.getOutputStream().write(byteUtils.readBytes(new File((SimpleChatApplication.scriptResourcePath + "/" + uri)), false));
-            } else if (uriLC.endsWith(".png")) {
-                response.setContentType("image/png");
-                response.getOutputStream().write(byteUtils.readBytes(new File((SimpleChatApplication.imageResourcePath + "/" + uri)), false));
-            } else if (uriLC.endsWith(".ico")) {
-                response.setContentType("image/x-icon");
-                response.getOutputStream().write(byteUtils.readBytes(new File((SimpleChatApplication.imageResourcePath + "/" + uri)), false));
+        Exchange exchange = new Exchange(request, response);
+        for (int i = 0; i < stages.size(); i++) {
+            long start = System.nanoTime();
+            try {
+                if (!stages.get(i).apply(exchange)) {
+                    return false;
+                }
+            } finally {
+                stageTimers.get(i).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
             }
-            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        return true;
+    }
+
+    private boolean serveAsset(Exchange exchange) throws IOException {
+        StaticAssets.Asset asset = staticAssets.get(exchange.uri);
+        if (asset != null) {
+            staticAssets.serve(asset, exchange.request, exchange.response);
             return false;
         }
+        return true;
+    }
 
-        if (uri.startsWith("/image-file-preview/")) {
-            String fileInfoId = uri.substring(uri.indexOf('/', 1) + 1);
-            FileInfo info = fileInfoRepository.findById(UUID.fromString(fileInfoId)).get();
-            MediaType mediaType;
-            byte fileData[];
-            if (info.getImgPrevFileDataId() == null) {
-                mediaType = byteUtils.getMediaType(info.getName());
-                fileData = byteUtils.readBytes(new File(SimpleChatApplication.uploadPath + "/" + info.getFileDataId()), true);
-            } else {
-                mediaType = byteUtils.getMediaType("a." + SimpleChatApplication.imgThumbnailFormat);
-                fileData = byteUtils.readBytes(new File(SimpleChatApplication.uploadPath + "/" + info.getImgPrevFileDataId()), true);
+    private boolean servePreview(Exchange exchange) throws IOException {
+        if (exchange.uri.startsWith("/image-file-preview/")) {
+            String fileInfoId = exchange.uri.substring(exchange.uri.indexOf('/', 1) + 1);
+            String sizeParameter = exchange.request.getParameter("size");
+            Integer size = null;
+            try {
+                size = ((sizeParameter != null) && !sizeParameter.isEmpty()) ? Integer.valueOf(sizeParameter) : null;
+            } catch (NumberFormatException e) {
+                // malformed sizes get the default preview
             }
-            response.setContentType("" + mediaType);
-            response.getOutputStream().write(fileData);
+            previews.serve(UUID.fromString(fileInfoId), size, exchange.request, exchange.response);
             return false;
         }
+        return true;
+    }
+
+    private boolean touchSession(Exchange exchange) {
+        exchange.session = sessionRepository.touch(exchange.request.getSession().getId());
+        return true;
+    }
+
+    private boolean login(Exchange exchange) throws UnsupportedEncodingException {
+        // credentials are only checked until the session has a user
+        if (exchange.session.getUser() == null) {
+            loginWithBasicAuth(exchange.request, exchange.request.getSession(), exchange.session);
+            loginWithCookies(getPropertiesFromCookies(exchange.request.getCookies()), exchange.session);
+        }
+        return true;
+    }
 
+    private boolean checkAccess(Exchange exchange) throws IOException {
+        String uri = exchange.uri;
+        Session session = exchange.session;
         if (!allowedUrls.contains(uri)) {
             if ("/login".equals(uri)) {
                 if (session.getUser() != null) {
-                    response.sendRedirect("/user");
+                    exchange.response.sendRedirect("/user");
                     return false;
                 }
             } else {
                 if (session.getUser() == null) {
                     session.setRedirectedUri(uri);
-                    response.sendRedirect("/login");
+                    exchange.response.sendRedirect("/login");
                     return false;
                 }
             }
         }
+        return true;
+    }
 
+    private boolean servePage(Exchange exchange) throws IOException {
+        String uri = exchange.uri;
         if (uri.equals("/")) {
             uri = "/home";
         }
         if (htmlFiles.contains(uri + ".html")) {
             Map<String, String> params = new HashMap<>();
-            putHeaderParams(params, session.getUser());
+            putHeaderParams(params, exchange.session.getUser());
             params.put("pageTitle", uri.substring(1));
             if (uri.equals("/user")) {
                 params.put("optionsSvg",
@@ -211,12 +241,13 @@ public class HttpInterceptor implements HandlerInterceptor {
                         + "id=\"OptionsSvg\" "
                         + "class=\"Button ButtonTransPrimary\""
                         + "onclick='toggleSidebarDisplay()'/>");
+                putMessageTemplates(params);
             } else {
                 params.put("optionsSvg", "");
             }
             String html = byteUtils.readPage(uri + ".html", params);
-            response.setContentType("text/html");
-            response.getOutputStream().write(html.getBytes("UTF-8"));
+            exchange.response.setContentType("text/html");
+            exchange.response.getOutputStream().write(html.getBytes("UTF-8"));
             return false;
         }
         return true;
@@ -229,4 +260,30 @@ public class HttpInterceptor implements HandlerInterceptor {
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception exception) throws Exception {
     }
+
+    @FunctionalInterface
+    private interface Stage {
+
+        /**
+         * Returns false if the request was answered.
+         */
+        boolean apply(Exchange exchange) throws Exception;
+    }
+
+    private static class Exchange {
+
+        private final HttpServletRequest request;
+
+        private final HttpServletResponse response;
+
+        private final String uri;
+
+        private Session session;
+
+        private Exchange(HttpServletRequest request, HttpServletResponse response) {
+            this.request = request;
+            this.response = response;
+            this.uri = request.getRequestURI();
+        }
+    }
 }
@@ -10,18 +10,27 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 import simplechat.controller.WebsocketController;
 
 @Configuration
 @EnableWebSocket
 public class WebsocketConfig implements WebSocketConfigurer {
 
+    /**
+     * Sub-protocol of clients that render messages from JSON records, clients asking for no sub-protocol
+     * get the original protocol with HTML fragments.
+     */
+    public static final String compactProtocol = "simplechat.v2";
+
     @Autowired
     private WebsocketController websocketController;
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry reg) {
-        reg.addHandler(socketHandler(), "/ws").setAllowedOrigins("*");
+        DefaultHandshakeHandler handshakeHandler = new DefaultHandshakeHandler();
+        handshakeHandler.setSupportedProtocols(compactProtocol);
+        reg.addHandler(socketHandler(), "/ws").setHandshakeHandler(handshakeHandler).setAllowedOrigins("*");
     }
 
     @Bean
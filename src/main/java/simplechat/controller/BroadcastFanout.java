@@ -0,0 +1,156 @@
+package simplechat.controller;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+import simplechat.model.Message;
+import simplechat.model.Session;
+import simplechat.repository.UnreadCounters;
+import simplechat.repository.UserDirectory;
+import simplechat.util.OutboundFrame;
+import simplechat.util.StripedLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers one frame of the broadcast channel to every connected session. The frame is built once by
+ * the caller and sessions are split in chunks which are delivered in parallel on a worker pool. Unread
+ * counts come from read markers, so only the in-memory counters of connected members not looking at the
+ * channel are touched; offline members cost nothing.
+ * Latency is published as "simplechat.broadcast.fanout" tagged with the order of magnitude of the
+ * number of members, so it can be plotted against the member count.
+ */
+@Component
+public class BroadcastFanout {
+
+    @Autowired
+    private StripedLock userLocks;
+
+    @Autowired
+    private UserDirectory userDirectory;
+
+    @Autowired
+    private UnreadCounters unreadCounters;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${broadcastFanoutThreads}")
+    private int fanoutThreads;
+
+    @Value("${broadcastFanoutChunksize}")
+    private int fanoutChunksize;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private ExecutorService executor;
+    private DistributionSummary recipients;
+
+    public interface SessionTask {
+
+        void run(Session session) throws IOException;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(fanoutThreads, r -> {
+            Thread t = new Thread(r, "broadcast-fanout-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        recipients = meterRegistry.summary("simplechat.broadcast.recipients");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Offers the frame to every session viewing the broadcast channel. When unread is set, it is counted for
+     * the other connected members and notViewingTask is run for them (under their stripe).
+     */
+    public void deliver(String senderUsername, OutboundFrame frame, Message unread, Collection<Session> sessions,
+                        SessionTask notViewingTask) {
+        long start = System.nanoTime();
+        String channel = SimpleChatApplication.broadcastUsername;
+        List<Session> others = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger delivered = new AtomicInteger();
+        List<Session> targets = new ArrayList<>();
+        for (Session session : sessions) {
+            if ((session.getUser() != null) && !session.getUser().getUsername().equals(senderUsername)) {
+                targets.add(session);
+            }
+        }
+        runChunked(targets, session -> {
+            if (channel.equals(session.getOtherSideUsername())) {
+                session.getOutboundQueue().offer(frame);
+                delivered.incrementAndGet();
+            } else {
+                others.add(session);
+            }
+        });
+        if (unread != null) {
+            runChunked(new ArrayList<>(others), session -> {
+                unreadCounters.increment(session.getUser().getUsername(), channel, unread);
+                notViewingTask.run(session);
+            });
+        }
+        recipients.record(delivered.get());
+        int members = userDirectory.getSnapshot().getEntries().size();
+        Timer.builder("simplechat.broadcast.fanout")
+                .tag("members", magnitude(members))
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void runChunked(List<Session> sessions, SessionTask task) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int from = 0; from < sessions.size(); from += fanoutChunksize) {
+            List<Session> chunk = sessions.subList(from, Math.min(sessions.size(), from + fanoutChunksize));
+            futures.add(executor.submit(() -> {
+                for (Session session : chunk) {
+                    ReentrantLock lock = userLocks.get(session.getUser().getUsername());
+                    try {
+                        lock.lock();
+                        task.run(session);
+                    } catch (IOException e) {
+                        logger.error("Unable to deliver broadcast to " + session.getUser().getUsername(), e);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Broadcast chunk failed", e.getCause());
+            }
+        }
+    }
+
+    private static String magnitude(int members) {
+        int m = 1;
+        while (m * 10 <= members) {
+            m *= 10;
+        }
+        return m + "+";
+    }
+}
@@ -1,34 +1,35 @@
 package simplechat.controller;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
 import simplechat.SimpleChatApplication;
+import simplechat.model.FileBlob;
 import simplechat.model.FileInfo;
 import simplechat.model.Session;
 import simplechat.model.User;
+import simplechat.repository.AccountDeletions;
+import simplechat.repository.FileBlobs;
 import simplechat.repository.FileInfoRepository;
 import simplechat.repository.SessionRepository;
+import simplechat.repository.UserDirectory;
 import simplechat.repository.UserRepository;
 import simplechat.util.ByteUtils;
+import simplechat.util.FileTransfer;
+import simplechat.util.UploadReceiver;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 @RestController
 public class MainController {
@@ -48,6 +49,24 @@ public class MainController {
     @Autowired
     private FileInfoRepository fileInfoRepository;
 
+    @Autowired
+    private UserDirectory userDirectory;
+
+    @Autowired
+    private FileTransfer fileTransfer;
+
+    @Autowired
+    private UploadReceiver uploadReceiver;
+
+    @Autowired
+    private FileBlobs fileBlobs;
+
+    @Autowired
+    private AccountDeletions accountDeletions;
+
+    @Autowired
+    private Previews previews;
+
     private User getUser(HttpSession session) {
         return sessionRepository.findById(session.getId()).get().getUser();
     }
@@ -87,7 +106,7 @@ public class MainController {
         User dbUser = userRepository.findByUsername(user.getUsername());
         if ((dbUser != null) && dbUser.getPassword().equals(byteUtils.hash(user.getPassword()))) {
             Session session = sessionRepository.findById(httpSession.getId()).get();
-            session.setUser(dbUser);
+            sessionRepository.setUser(session, dbUser);
             if (user.getRememberMe()) {
                 Cookie usernameCookie = new Cookie("username", user.getUsername());
                 usernameCookie.setMaxAge(60 * 60 * 24 * 30 * 12);
@@ -106,26 +125,31 @@ public class MainController {
 
     @PostMapping("/signup-helper")
     public String signupHelper(HttpServletRequest request, HttpServletResponse response, @RequestBody User user) throws IOException {
-        HttpSession httpSession = request.getSession();
-        User dbUser = userRepository.findByUsername(user.getUsername());
-        if (dbUser == null) {
-            String problem = User.validateAll(user);
-            if (problem == null) {
-                dbUser = new User();
-                dbUser.setFirstname(user.getFirstname());
-                dbUser.setLastname(user.getLastname());
-                dbUser.setUsername(user.getUsername());
-                dbUser.setPassword(byteUtils.hash(user.getPassword()));
-                userRepository.saveAndFlush(dbUser);
-                String result = loginHelper(request, response, user);
-                websocketController.updateAllUserLists(null);
-                return result;
-            } else {
-                return "No\n" + problem;
+        String problem = User.validateAll(user);
+        if (problem != null) {
+            return "No\n" + problem;
+        }
+        User dbUser;
+        // the name must neither exist nor wait for a purge, checked and taken atomically with deletions
+        ReentrantLock lock = accountDeletions.getLock(user.getUsername());
+        try {
+            lock.lock();
+            if ((userRepository.findByUsername(user.getUsername()) != null) || accountDeletions.isPending(user.getUsername())) {
+                return "No\nDuplicate username";
             }
-        } else {
-            return "No\nDuplicate username";
+            dbUser = new User();
+            dbUser.setFirstname(user.getFirstname());
+            dbUser.setLastname(user.getLastname());
+            dbUser.setUsername(user.getUsername());
+            dbUser.setPassword(byteUtils.hash(user.getPassword()));
+            userRepository.saveAndFlush(dbUser);
+        } finally {
+            lock.unlock();
         }
+        userDirectory.refresh();
+        String result = loginHelper(request, response, user);
+        websocketController.addUser(dbUser);
+        return result;
     }
 
     @GetMapping("/logout")
@@ -141,7 +165,7 @@ public class MainController {
             response.addCookie(passwordCookie);
             Session session = sessionRepository.findById(httpSession.getId()).get();
             websocketController.logout(user);
-            session.logout();
+            sessionRepository.setUser(session, null);
             response.sendRedirect("/home");
             return "Redirecting";
         } catch (IOException e) {
@@ -158,63 +182,64 @@ public class MainController {
         User user = session.getUser();
         String logout = logout(request, response);
         if ("Redirecting".equals(logout) && !SimpleChatApplication.adminUsername.equals(user.getUsername())) {
-            sessionRepository.findByUsername(httpSession.getId())
-                    .forEach(x -> x.setUser(null));
-            userRepository.deleteById(user.getId());
+            sessionRepository.findByUsername(user.getUsername())
+                    .forEach(x -> sessionRepository.setUser(x, null));
+            ReentrantLock lock = accountDeletions.getLock(user.getUsername());
+            try {
+                lock.lock();
+                userRepository.deleteById(user.getId());
+                accountDeletions.delete(user.getUsername());
+            } finally {
+                lock.unlock();
+            }
+            userDirectory.refresh();
+            websocketController.removeUser(user.getUsername());
         }
-        websocketController.updateAllUserLists(user.getUsername());
         return logout;
     }
 
     @GetMapping(value = "/download")
-    public ResponseEntity<InputStreamResource> download(@RequestParam String fileId, HttpServletResponse response) {
-        try {
-            Optional<FileInfo> infoOptional = fileInfoRepository.findById(UUID.fromString(fileId));
-            if (!infoOptional.isPresent()) {
-                throw new RuntimeException("FileNotFound: " + fileId);
-            }
-            FileInfo info = infoOptional.get();
-            MediaType mediaType = byteUtils.getMediaType(info.getName());
-            InputStreamResource resource = new InputStreamResource(
-                    new FileInputStream(new File(SimpleChatApplication.uploadPath + "/" + info.getFileDataId())));
-            ResponseEntity<InputStreamResource> body = ResponseEntity.ok()
-                    .contentType(mediaType)
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; "
-                            + "filename=\"" + info.getName() + "\"; "
-                            + "filename*=UTF-8''" + URLEncoder.encode(info.getName(), "UTF-8").replace("+", "%20"))
-                    .contentLength(info.getLength())
-                    .body(resource);
-            return body;
-        } catch (Exception ioex) {
-            throw new RuntimeException("Exception while reading file: " + fileId);
+    public void download(@RequestParam String fileId, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Optional<FileInfo> infoOptional = fileInfoRepository.findById(UUID.fromString(fileId));
+        if (!infoOptional.isPresent()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "FileNotFound: " + fileId);
+            return;
         }
+        FileInfo info = infoOptional.get();
+        MediaType mediaType = byteUtils.getMediaType(info.getName());
+        fileTransfer.send(new File(SimpleChatApplication.uploadPath + "/" + info.getFileDataId()),
+                "\"" + info.getId() + "\"", "" + mediaType,
+                "attachment; "
+                        + "filename=\"" + info.getName() + "\"; "
+                        + "filename*=UTF-8''" + URLEncoder.encode(info.getName(), "UTF-8").replace("+", "%20"),
+                request, response);
     }
 
     @PostMapping(value = "/uploadFile")
     @ResponseBody
-    public String uploadFile(HttpServletRequest request, @RequestParam("file") MultipartFile file) {
+    public String uploadFile(HttpServletRequest request) {
         HttpSession httpSession = request.getSession();
         Map<String, String> params = new HashMap<>();
         params.put("pageTitle", "title");
         boolean success = true;
         try {
-            FileInfo info = new FileInfo();
-            info.setName(file.getOriginalFilename());
-            File orgFile = new File(SimpleChatApplication.uploadPath + "/" + UUID.randomUUID());
-            FileOutputStream os = new FileOutputStream(orgFile);
-            byteUtils.copy(file.getInputStream(), os, false, true);
-            info.setFileDataId(UUID.fromString(orgFile.getName()));
-            info.setLength(orgFile.length());
-
-            MediaType mediaType = byteUtils.getMediaType(info.getName());
-            boolean isImg = (mediaType != null && mediaType.toString().contains("image"));
-            if (isImg) {
-                File imgPrevFile = new File(SimpleChatApplication.uploadPath + "/" + UUID.randomUUID());
-                byteUtils.makeThumbnailImage(SimpleChatApplication.imgThumbnailFormat, 500, new FileInputStream(orgFile), new FileOutputStream(imgPrevFile), true, true);
-                info.setImgPrevFileDataId(UUID.fromString(imgPrevFile.getName()));
+            UploadReceiver.Upload upload = uploadReceiver.receive(request, "file");
+            FileBlob blob = fileBlobs.store(upload);
+            FileInfo info = createFileInfo(upload.getName(), blob);
+            try {
+                fileInfoRepository.save(info);
+            } catch (RuntimeException e) {
+                fileBlobs.release(info);
+                throw e;
+            }
+            if (!websocketController.sendFile(getUser(httpSession), info)) {
+                // no message refers to the file
+                fileInfoRepository.delete(info);
+                fileBlobs.release(info);
+                success = false;
+            } else if (isImage(byteUtils.getMediaType(info.getName()))) {
+                previews.request(blob);
             }
-            fileInfoRepository.save(info);
-            websocketController.sendFile(getUser(httpSession), info);
         } catch (Exception e) {
             e.printStackTrace();
             success = false;
@@ -229,4 +254,18 @@ public class MainController {
             return "";
         }
     }
+
+    private FileInfo createFileInfo(String name, FileBlob blob) {
+        FileInfo info = new FileInfo();
+        info.setName(name);
+        info.setLength(blob.getLength());
+        info.setDigest(blob.getDigest());
+        info.setFileDataId(blob.getFileDataId());
+        info.setImgPrevFileDataId(blob.getImgPrevFileDataId());
+        return info;
+    }
+
+    private boolean isImage(MediaType mediaType) {
+        return (mediaType != null && mediaType.toString().contains("image"));
+    }
 }
@@ -0,0 +1,211 @@
+package simplechat.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+import simplechat.model.FileBlob;
+import simplechat.model.FileInfo;
+import simplechat.model.Message;
+import simplechat.repository.FileBlobRepository;
+import simplechat.repository.FileBlobs;
+import simplechat.repository.FileInfoRepository;
+import simplechat.repository.MessageRepository;
+import simplechat.repository.MessageWriter;
+import simplechat.util.ByteUtils;
+import simplechat.util.FileTransfer;
+import simplechat.util.PreviewCache;
+import simplechat.util.StaticAssets;
+import simplechat.util.Thumbnails;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Image previews of uploaded files. Previews are made in the background after the upload has been answered,
+ * one file per width in thumbnailSizes, and the chat clients are told with a "thumb-ready" frame when they
+ * can be fetched. Until then a placeholder is served. Previews belong to the {@link FileBlob}, so each
+ * content is scaled only once.
+ */
+@Component
+public class Previews {
+
+    @Autowired
+    private Thumbnails thumbnails;
+
+    @Autowired
+    private FileBlobs fileBlobs;
+
+    @Autowired
+    private FileBlobRepository fileBlobRepository;
+
+    @Autowired
+    private FileInfoRepository fileInfoRepository;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private MessageWriter messageWriter;
+
+    @Autowired
+    private WebsocketController websocketController;
+
+    @Autowired
+    private FileTransfer fileTransfer;
+
+    @Autowired
+    private StaticAssets staticAssets;
+
+    @Autowired
+    private PreviewCache previewCache;
+
+    @Autowired
+    private ByteUtils byteUtils;
+
+    @Value("${thumbnailSizes}")
+    private String thumbnailSizes;
+
+    private static final int defaultSize = 500;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private List<Integer> sizes = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        for (String size : thumbnailSizes.split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        Collections.sort(sizes);
+    }
+
+    /**
+     * Queues making the previews of a blob unless they are already made or being made.
+     */
+    public void request(FileBlob blob) {
+        if ((blob.getPreviewSizes() != null) || thumbnails.isPending(blob.getDigest())) {
+            return;
+        }
+        Map<Integer, File> targets = new HashMap<>();
+        for (int size : sizes) {
+            targets.put(size, previewFile(blob.getFileDataId(), size));
+        }
+        String digest = blob.getDigest();
+        thumbnails.submit(digest, new File(SimpleChatApplication.uploadPath + "/" + blob.getFileDataId()),
+                SimpleChatApplication.imgThumbnailFormat, targets, success -> {
+                    String previewSizes = "";
+                    if (success) {
+                        StringJoiner joiner = new StringJoiner(",");
+                        sizes.forEach(x -> joiner.add("" + x));
+                        previewSizes = joiner.toString();
+                    }
+                    if (fileBlobs.previewsMade(digest, previewSizes) == null) {
+                        // the last reference was dropped while the previews were made
+                        fileBlobs.deletePreviews(blob.getFileDataId(), previewSizes);
+                        return;
+                    }
+                    messageWriter.sync();
+                    for (FileInfo info : fileInfoRepository.findAllByDigest(digest)) {
+                        for (Message msg : messageRepository.findAllByFileInfoId(info.getId())) {
+                            try {
+                                websocketController.thumbReady(msg);
+                            } catch (IOException e) {
+                                logger.warn("Unable to notify preview of " + info.getId(), e);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Serves the smallest preview at least size pixels wide (the largest one if there is none). Previews are
+     * answered from the {@link PreviewCache} when possible, misses are streamed from disk and then cached.
+     */
+    public void serve(UUID fileInfoId, Integer size, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int wanted = (size != null) ? size : defaultSize;
+        // keyed on the width that is sent, so sizes that map to the same preview share one entry
+        String key = fileInfoId + "/" + choose(sizes, wanted);
+        PreviewCache.Entry entry = previewCache.get(key);
+        if (entry != null) {
+            previewCache.send(entry, request, response);
+            return;
+        }
+        Optional<FileInfo> infoOptional = fileInfoRepository.findById(fileInfoId);
+        if (!infoOptional.isPresent()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        FileInfo info = infoOptional.get();
+        String previewType = "" + byteUtils.getMediaType("a." + SimpleChatApplication.imgThumbnailFormat);
+        if (info.getDigest() == null) {
+            // uploaded before blobs existed
+            if (info.getImgPrevFileDataId() == null) {
+                sendOriginal(info.getFileDataId(), info, request, response);
+            } else {
+                sendPreview(key, new File(SimpleChatApplication.uploadPath + "/" + info.getImgPrevFileDataId()),
+                        "\"" + info.getId() + "\"", previewType, request, response);
+            }
+            return;
+        }
+        FileBlob blob = fileBlobRepository.findByDigest(info.getDigest());
+        if (blob == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (blob.getPreviewSizes() == null) {
+            // not made yet, or lost with a restart or a full queue
+            request(blob);
+            response.setHeader("Cache-Control", "no-store");
+            response.sendRedirect("/" + staticAssets.versionedUri("image-placeholder.svg"));
+            return;
+        }
+        if (blob.getPreviewSizes().isEmpty()) {
+            // not decodable by ImageIO, let the browser try the original
+            sendOriginal(blob.getFileDataId(), info, request, response);
+            return;
+        }
+        List<Integer> widths = new ArrayList<>();
+        for (String s : blob.getPreviewSizes().split(",")) {
+            widths.add(Integer.parseInt(s));
+        }
+        int chosen = choose(widths, wanted);
+        sendPreview(key, previewFile(blob.getFileDataId(), chosen), "\"" + info.getId() + "-" + chosen + "\"",
+                previewType, request, response);
+    }
+
+    /**
+     * Returns the smallest width at least wanted pixels wide, the largest one if there is none.
+     */
+    private static int choose(List<Integer> widths, int wanted) {
+        int chosen = 0;
+        int largest = 0;
+        for (int width : widths) {
+            largest = Math.max(largest, width);
+            if ((width >= wanted) && ((chosen == 0) || (width < chosen))) {
+                chosen = width;
+            }
+        }
+        return (chosen == 0) ? largest : chosen;
+    }
+
+    private void sendPreview(String key, File file, String etag, String contentType,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        fileTransfer.send(file, etag, contentType, null, request, response);
+        previewCache.put(key, file, etag, contentType);
+    }
+
+    private void sendOriginal(UUID fileDataId, FileInfo info, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        fileTransfer.send(new File(SimpleChatApplication.uploadPath + "/" + fileDataId), "\"" + info.getId() + "\"",
+                "" + byteUtils.getMediaType(info.getName()), null, request, response);
+    }
+
+    private File previewFile(UUID fileDataId, int size) {
+        return new File(SimpleChatApplication.uploadPath + "/" + fileDataId + "-" + size);
+    }
+}
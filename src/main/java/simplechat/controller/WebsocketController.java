@@ -2,21 +2,29 @@ package simplechat.controller;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 import simplechat.SimpleChatApplication;
 import simplechat.config.HttpInterceptor;
+import simplechat.config.WebsocketConfig;
 import simplechat.model.*;
 import simplechat.repository.*;
 import simplechat.util.ByteUtils;
+import simplechat.util.FragmentCache;
+import simplechat.util.OutboundFrame;
+import simplechat.util.OutboundQueues;
+import simplechat.util.StripedLock;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
 @Component
 public class WebsocketController implements WebSocketHandler {
@@ -25,7 +33,7 @@ public class WebsocketController implements WebSocketHandler {
     private ByteUtils byteUtils;
 
     @Autowired
-    private UserRepository userRepository;
+    private UserDirectory userDirectory;
 
     @Autowired
     private SessionRepository sessionRepository;
@@ -34,7 +42,19 @@ public class WebsocketController implements WebSocketHandler {
     private MessageRepository messageRepository;
 
     @Autowired
-    private UnreadMessageCounterRepository unreadMessageCounterRepository;
+    private MessageWriter messageWriter;
+
+    @Autowired
+    private ConversationTails conversationTails;
+
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private UnreadCounters unreadCounters;
 
     @Autowired
     private FileInfoRepository fileInfoRepository;
@@ -42,107 +62,161 @@ public class WebsocketController implements WebSocketHandler {
     @Autowired
     private HttpInterceptor httpInterceptor;
 
+    @Autowired
+    private StripedLock userLocks;
+
+    @Autowired
+    private OutboundQueues outboundQueues;
+
+    @Autowired
+    private BroadcastFanout broadcastFanout;
+
     @Autowired
     @Value("${loadingMessagesChunksize}")
     public int loadingMessagesChunksize;
 
-    private final ReentrantLock lock = new ReentrantLock(true);
+    @Value("${sidebarPageSize}")
+    private int sidebarPageSize;
+
+    /*
+     * Everything that reads or writes the state of a user (its session and its unread counters) runs
+     * under the stripe of that user. Frames are never written to a socket directly, they are offered
+     * to the outbound queue of the session and delivered by the sender pool. At most one stripe is held
+     * at a time, so operations crossing users (routing, broadcast) never wait on each other in a cycle.
+     */
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final Map<String, Session> sessionMapFromWSS = new HashMap<>();
-    private final Map<String, Session> sessionMapFromUN = new HashMap<>();
+    private final Map<String, Session> sessionMapFromWSS = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessionMapFromUN = new ConcurrentHashMap<>();
 
     @Override
     public void afterConnectionEstablished(WebSocketSession wss) throws IOException {
-        try {
-            lock.lock();
-            Session session = getSession(wss);
-            if ((session != null) && (session.getUser() != null)) {
-                Session oldSession = sessionMapFromUN.get(session.getUser().getUsername());
+        Session session = getSession(wss);
+        if ((session != null) && (session.getUser() != null)) {
+            String username = session.getUser().getUsername();
+            ReentrantLock lock = userLocks.get(username);
+            long cutoff;
+            try {
+                lock.lock();
+                Session oldSession = sessionMapFromUN.get(username);
                 if (oldSession != null) {
                     if (oldSession.getWebSocketSession().isOpen()) {
-                        oldSession.getWebSocketSession().sendMessage(new TextMessage("redirect\n/"));
+                        oldSession.getOutboundQueue().offer(OutboundFrame.live("redirect\n/"));
                     }
                     removeWebSocketSession(oldSession.getWebSocketSession());
                 }
                 session.setWebSocketSession(wss);
-                sessionMapFromWSS.put(wss.getId(), session);
-                sessionMapFromUN.put(session.getUser().getUsername(), session);
+                session.setCompact(WebsocketConfig.compactProtocol.equals(wss.getAcceptedProtocol()));
+                session.setOutboundQueue(outboundQueues.open(wss, session.isCompact()));
                 session.setOtherSideUsername(SimpleChatApplication.broadcastUsername);
-                changePage(session);
-                session.getWebSocketSession().sendMessage(new TextMessage(
-                        createUsersListUIComponent(session.getUser().getUsername(), session.getOtherSideUsername())));
+                sessionMapFromWSS.put(wss.getId(), session);
+                sessionMapFromUN.put(username, session);
+                cutoff = unreadCounters.open(username);
+            } finally {
+                lock.unlock();
+            }
+            // the counts are loaded without the stripe, messages sent meanwhile are counted as they arrive
+            Map<String, Integer> loaded = unreadCounters.count(session.getUser(), cutoff);
+            try {
+                lock.lock();
+                if ((sessionMapFromUN.get(username) == session) && unreadCounters.apply(username, cutoff, loaded)) {
+                    session.getOutboundQueue().offer(OutboundFrame.live(createUsersListUIComponent(session)));
+                    changePage(session);
+                }
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
     @Override
     public void handleMessage(WebSocketSession wss, WebSocketMessage<?> webSocketMessage) throws Exception {
-        try {
-            lock.lock();
-            if (!sessionMapFromWSS.containsKey(wss.getId())) {
-                return;
-            }
-            Session currentSession = sessionMapFromWSS.get(wss.getId());
-            User currentUser = currentSession.getUser();
-            String payload = ((TextMessage) webSocketMessage).getPayload();
-            String cmd = payload.substring(0, payload.indexOf("\n"));
-            String body = payload.substring(payload.indexOf("\n") + 1, payload.length());
-            if ("msg".equals(cmd)) {
-                Message msg = new Message();
-                msg.setTextMessage(true);
-                msg.setBody(body);
-                msg.setDate(System.currentTimeMillis());
-                msg.setSenderPresentation(currentUser.getPresentation());
-                msg.setSenderUsername(currentUser.getUsername());
-                msg.setReceiverUsername(currentSession.getOtherSideUsername());
-
-                routeMessage(currentUser.getUsername(), msg);
-            } else if ("change-page".equals(cmd)) {
-                currentSession.setOtherSideUsername(body);
-                changePage(currentSession);
-            } else if ("delete-msg".equals(cmd)) {
-                Message msg = messageRepository.findById(UUID.fromString(body)).get();
-                deleteMessage(msg, currentSession);
-            } else if ("top".equals(cmd)) {
-                String otherSideUsername = currentSession.getOtherSideUsername();
-                sendMessages(currentUser.getUsername(), otherSideUsername, currentSession, Long.parseLong(body), "load");
-            } else if ("ping".equals(cmd)) {
-                currentSession.getWebSocketSession().sendMessage(new TextMessage("pong\n"));
-            } else {
-                logger.error("Unsupported command!");
+        Session currentSession = sessionMapFromWSS.get(wss.getId());
+        if (currentSession == null) {
+            return;
+        }
+        User currentUser = currentSession.getUser();
+        String payload = ((TextMessage) webSocketMessage).getPayload();
+        String cmd = payload.substring(0, payload.indexOf("\n"));
+        String body = payload.substring(payload.indexOf("\n") + 1, payload.length());
+        if ("msg".equals(cmd)) {
+            Message msg = new Message();
+            msg.setTextMessage(true);
+            msg.setBody(body);
+            msg.setDate(System.currentTimeMillis());
+            msg.setSenderPresentation(currentUser.getPresentation());
+            msg.setSenderUsername(currentUser.getUsername());
+
+            routeMessage(currentUser.getUsername(), msg);
+        } else if ("delete-msg".equals(cmd)) {
+            messageWriter.sync();
+            Message msg = messageRepository.findById(UUID.fromString(body)).get();
+            deleteMessage(msg, currentSession);
+        } else {
+            ReentrantLock lock = userLocks.get(currentUser.getUsername());
+            try {
+                lock.lock();
+                if ("change-page".equals(cmd)) {
+                    if (!body.equals(currentSession.getOtherSideUsername())) {
+                        unreadCounters.markRead(currentUser.getUsername(), currentSession.getOtherSideUsername());
+                    }
+                    currentSession.setOtherSideUsername(body);
+                    changePage(currentSession);
+                } else if ("top".equals(cmd)) {
+                    String otherSideUsername = currentSession.getOtherSideUsername();
+                    sendMessages(currentUser.getUsername(), otherSideUsername, currentSession, Long.parseLong(body), "load");
+                } else if ("users-page".equals(cmd)) {
+                    currentSession.getOutboundQueue().offer(OutboundFrame.live(
+                            createUsersPageUIComponent(currentSession, Integer.parseInt(body))));
+                } else if ("users-search".equals(cmd)) {
+                    currentSession.getOutboundQueue().offer(OutboundFrame.live(
+                            createUsersSearchUIComponent(currentSession, body)));
+                } else if ("user-entry".equals(cmd)) {
+                    UserDirectory.Entry entry = userDirectory.getSnapshot().find(body);
+                    if (entry != null) {
+                        currentSession.getOutboundQueue().offer(OutboundFrame.live(
+                                "user-entry\n" + createUserEntryUIComponent(currentSession, entry, true)));
+                    }
+                } else if ("ping".equals(cmd)) {
+                    currentSession.getOutboundQueue().offer(OutboundFrame.live("pong\n"));
+                } else {
+                    logger.error("Unsupported command!");
+                }
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
-    private void sendMessages(String currentSideUsername, String otherSideUsername, Session currentSession, long date, String cmd) throws IOException {
-        List<Message> messages;
-        if (SimpleChatApplication.broadcastUsername.equals(otherSideUsername)) {
-            messages = messageRepository.fetchMessages(loadingMessagesChunksize, otherSideUsername, date);
-        } else {
-            messages = messageRepository.fetchMessages(loadingMessagesChunksize, currentSideUsername, otherSideUsername, date);
-        }
+    private void sendMessages(String currentSideUsername, String otherSideUsername, Session currentSession, long seq, String cmd) throws IOException {
+        List<Message> messages = conversationTails.fetchMessages(loadingMessagesChunksize,
+                Message.conversationKey(currentSideUsername, otherSideUsername), seq);
         Collections.reverse(messages);
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < messages.size(); i++) {
-            Message m = messages.get(i);
-            if (m.isTextMessage()) {
-                sb.append(createTextMessageUIComponent(m, currentSideUsername.equals(m.getSenderUsername())));
-            } else {
-                sb.append(createFileMessageUIComponent(m, currentSideUsername.equals(m.getSenderUsername())));
+        if (currentSession.isCompact()) {
+            List<Map<String, Object>> records = new ArrayList<>(messages.size());
+            messages.forEach(m -> records.add(createMessageRecord(m, currentSideUsername.equals(m.getSenderUsername()), false)));
+            sb.append(objectMapper.writeValueAsString(records));
+        } else {
+            for (int i = 0; i < messages.size(); i++) {
+                Message m = messages.get(i);
+                sb.append(createMessageUIComponent(m, currentSideUsername.equals(m.getSenderUsername())));
             }
         }
-        currentSession.getWebSocketSession().sendMessage(new TextMessage(cmd + "\n" + sb.toString()));
+        String pack = cmd + "\n" + sb.toString();
+        currentSession.getOutboundQueue().offer("page".equals(cmd) ? OutboundFrame.barrier(pack) : OutboundFrame.bulk(pack));
         if (messages.size() > 0) {
-            currentSession.getWebSocketSession().sendMessage(new TextMessage("checkForLoadingMore\n"));
+            currentSession.getOutboundQueue().offer(OutboundFrame.bulk("checkForLoadingMore\n"));
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession wss, CloseStatus closeStatus) throws Exception {
+        Session session = sessionMapFromWSS.get(wss.getId());
+        if ((session == null) || (session.getUser() == null)) {
+            sessionMapFromWSS.remove(wss.getId());
+            return;
+        }
+        ReentrantLock lock = userLocks.get(session.getUser().getUsername());
         try {
             lock.lock();
             removeWebSocketSession(wss);
@@ -152,10 +226,15 @@ public class WebsocketController implements WebSocketHandler {
     }
 
     public void logout(User user) {
+        if (user == null) {
+            return;
+        }
+        ReentrantLock lock = userLocks.get(user.getUsername());
         try {
             lock.lock();
-            if (user != null && sessionMapFromUN.containsKey(user.getUsername())) {
-                removeWebSocketSession(sessionMapFromUN.get(user.getUsername()).getWebSocketSession());
+            Session session = sessionMapFromUN.get(user.getUsername());
+            if (session != null) {
+                removeWebSocketSession(session.getWebSocketSession());
             }
         } finally {
             lock.unlock();
@@ -163,12 +242,16 @@ public class WebsocketController implements WebSocketHandler {
     }
 
     private void removeWebSocketSession(WebSocketSession wss) {
-        if (sessionMapFromWSS.containsKey(wss.getId())) {
-            User user = sessionMapFromWSS.get(wss.getId()).getUser();
-            if (user != null) {
-                sessionMapFromUN.remove(user.getUsername());
+        Session session = sessionMapFromWSS.remove(wss.getId());
+        if (session != null) {
+            if ((session.getOutboundQueue() != null) && (session.getOutboundQueue().getWebSocketSession() == wss)) {
+                session.getOutboundQueue().close();
+            }
+            User user = session.getUser();
+            if ((user != null) && sessionMapFromUN.remove(user.getUsername(), session)) {
+                unreadCounters.markRead(user.getUsername(), session.getOtherSideUsername());
+                unreadCounters.unload(user.getUsername());
             }
-            sessionMapFromWSS.remove(wss.getId());
         }
     }
 
@@ -181,50 +264,63 @@ public class WebsocketController implements WebSocketHandler {
         return false;
     }
 
-    public void sendFile(User sender, FileInfo info) throws IOException {
+    /**
+     * Sends a message for an uploaded file, returns false without sending anything if the sender is not
+     * connected (the caller owns the file then).
+     */
+    public boolean sendFile(User sender, FileInfo info) throws IOException {
         Message msg = new Message();
         msg.setTextMessage(false);
-        msg.setImageFile(info.getImgPrevFileDataId() != null);
+        MediaType mediaType = byteUtils.getMediaType(info.getName());
+        msg.setImageFile((mediaType != null) && mediaType.toString().contains("image"));
         msg.setBody(info.getName() + " (" + byteUtils.humanReadableSize(info.getLength()) + ")");
         msg.setDate(System.currentTimeMillis());
         msg.setSenderPresentation(sender.getPresentation());
         msg.setFileInfoId(info.getId());
-        try {
-            lock.lock();
-            routeMessage(sender.getUsername(), msg);
-        } finally {
-            lock.unlock();
+        return routeMessage(sender.getUsername(), msg);
+    }
+
+    /**
+     * Tells the clients showing an image message that its previews can be fetched.
+     */
+    public void thumbReady(Message msg) throws IOException {
+        String pack = "thumb-ready\n" + msg.getFileInfoId();
+        Session senderSession = sessionMapFromUN.get(msg.getSenderUsername());
+        if (senderSession != null) {
+            senderSession.getOutboundQueue().offer(OutboundFrame.live(pack));
         }
+        routePacket(pack, msg.getSenderUsername(), msg.getReceiverUsername());
     }
 
-    public void updateAllUserLists(String excludeUsername) {
-        try {
-            lock.lock();
-            if (excludeUsername != null) {
-                List<Message> messages = messageRepository.findAllBySenderUsername(excludeUsername);
-                messages.addAll(messageRepository.findAllByReceiverUsername(excludeUsername));
-                messages.forEach(x -> messageRepository.delete(x));
-                List<UnreadMessageCounter> unreadMessageCounters = unreadMessageCounterRepository.findAllByCurrentSideUsername(excludeUsername);
-                unreadMessageCounters.addAll(unreadMessageCounterRepository.findAllByOtherSideUsername(excludeUsername));
-                unreadMessageCounterRepository.deleteAll(unreadMessageCounters);
-            }
-            sessionMapFromWSS.values().forEach(x -> {
-                try {
-                    if (x.getUser() != null) {
-                        if (excludeUsername != null && x.getOtherSideUsername().equals(excludeUsername)) {
-                            x.setOtherSideUsername(SimpleChatApplication.broadcastUsername);
-                            changePage(x);
-                        }
-                        x.getWebSocketSession().sendMessage(new TextMessage(
-                                createUsersListUIComponent(x.getUser().getUsername(), x.getOtherSideUsername())));
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-        } finally {
-            lock.unlock();
+    public void addUser(User user) throws IOException {
+        UserDirectory.Entry entry = userDirectory.getSnapshot().find(user.getUsername());
+        if (entry == null) {
+            return;
         }
+        OutboundFrame frame = OutboundFrame.live("user-added\n" + createUserEntryUIComponent(entry, false, false, 0));
+        sessionMapFromUN.values().forEach(x -> x.getOutboundQueue().offer(frame));
+    }
+
+    /**
+     * Takes a deleted account off the sidebars and conversations, its messages are purged by {@link AccountDeletions}.
+     */
+    public void removeUser(String username) {
+        OutboundFrame frame = OutboundFrame.live("user-removed\n" + username);
+        sessionMapFromUN.values().forEach(x -> {
+            ReentrantLock lock = userLocks.get(x.getUser().getUsername());
+            try {
+                lock.lock();
+                if (x.getOtherSideUsername().equals(username)) {
+                    x.setOtherSideUsername(SimpleChatApplication.broadcastUsername);
+                    changePage(x);
+                }
+                x.getOutboundQueue().offer(frame);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        });
     }
 
     private Session getSession(WebSocketSession wss) {
@@ -263,16 +359,55 @@ public class WebsocketController implements WebSocketHandler {
         return null;
     }
 
-    private String createFileMessageUIComponent(Message msg, boolean self) throws IOException {
+    /**
+     * Returns the HTML of a stored message, rendered once per view and kept in the {@link FragmentCache}.
+     */
+    private String createMessageUIComponent(Message msg, boolean self) throws IOException {
+        String fragment = fragmentCache.get(msg.getId(), self);
+        if (fragment == null) {
+            fragment = msg.isTextMessage() ? createTextMessageUIComponent(msg, self, false) : createFileMessageUIComponent(msg, self, false);
+            fragmentCache.put(msg.getId(), self, fragment);
+        }
+        return fragment;
+    }
+
+    /**
+     * Returns a message as a record of the compact protocol, the client renders it like the HTML fragments.
+     */
+    private Map<String, Object> createMessageRecord(Message msg, boolean self, boolean pending) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", msg.getId());
+        record.put("seq", msg.getSeq());
+        record.put("date", msg.getDate());
+        record.put("dateStr", byteUtils.formatTime(msg.getDate()));
+        record.put("body", msg.getBody());
+        if (self) {
+            record.put("self", true);
+        } else {
+            record.put("sender", msg.getSenderPresentation());
+        }
+        if (!msg.isTextMessage()) {
+            record.put("file", msg.getFileInfoId());
+            record.put("image", msg.isImageFile());
+        }
+        if (pending) {
+            record.put("pending", true);
+        }
+        return record;
+    }
+
+    private String createFileMessageUIComponent(Message msg, boolean self, boolean pending) throws IOException {
         String text = "";
         Map<String, String> params = new HashMap<>();
         params.put("id", "" + msg.getId());
-        params.put("date", "date=\"" + msg.getDate() + "\"");
+        params.put("date", "date=\"" + msg.getDate() + "\" seq=\"" + msg.getSeq() + "\"" + (pending ? " data-pending" : ""));
         params.put("onclick", " onclick=\'download(\"" + msg.getFileInfoId() + "\")\' ");
         params.put("body", msg.getBody());
         params.put("dateStr", byteUtils.formatTime(msg.getDate()));
         if (msg.isImageFile()) {
-            params.put("image", "<img src=\"image-file-preview/" + msg.getFileInfoId() + "\" class=\"ChatImgFileMsgAttachment\"/>");
+            String src = "image-file-preview/" + msg.getFileInfoId() + "?size=";
+            params.put("image", "<img src=\"" + src + "500\" srcset=\"" + src + "500 1x, " + src + "1000 2x\" "
+                    + "data-preview=\"" + msg.getFileInfoId() + "\" class=\"ChatImgFileMsgAttachment\"/>");
         } else {
             params.put("image", "<img src=\"attachment.svg\" class=\"ChatFileMsgAttachmentSvg\"/>");
         }
@@ -285,11 +420,11 @@ public class WebsocketController implements WebSocketHandler {
         return text;
     }
 
-    private String createTextMessageUIComponent(Message msg, boolean self) throws IOException {
+    private String createTextMessageUIComponent(Message msg, boolean self, boolean pending) throws IOException {
         String text = "";
         Map<String, String> params = new HashMap<>();
         params.put("id", "" + msg.getId());
-        params.put("date", "date=\"" + msg.getDate() + "\"");
+        params.put("date", "date=\"" + msg.getDate() + "\" seq=\"" + msg.getSeq() + "\"" + (pending ? " data-pending" : ""));
         params.put("image", "");
         params.put("onclick", "");
         params.put("body", msg.getBody());
@@ -303,100 +438,193 @@ public class WebsocketController implements WebSocketHandler {
         return text;
     }
 
-    private String createUsersListUIComponent(String username, String activeUsername) throws IOException {
-        List<User> users = userRepository.findAll();
-        User broadcastUser = users.stream().filter(x -> x.getUsername().equals(SimpleChatApplication.broadcastUsername))
-                .collect(Collectors.toList()).get(0);
-        users.remove(broadcastUser);
-        Collections.sort(users);
-        users.add(0, broadcastUser);
-        String text = "users\n";
-        Map<String, String> params = new HashMap<>();
-        for (int i = 0; i < users.size(); i++) {
-            User user = users.get(i);
-            params.clear();
-            if (user.getUsername().equals(activeUsername)) {
-                params.put("name", user.getPresentation());
-                text += byteUtils.readPage("/sidebar-entry-active.html", params);
-            } else {
-                params.put("name", user.getPresentation());
-                params.put("onclick", " onclick=\'changePage(\"" + user.getUsername() + "\")\' ");
-                UnreadMessageCounter unreadMessageCounter = unreadMessageCounterRepository.findByCurrentSideUsernameAndOtherSideUsername(username, user.getUsername());
-                Integer count = (unreadMessageCounter == null) ? 0 : unreadMessageCounter.getCount();
-                params.put("count", (count == 0) ? ""
-                        : "<div class=\"SidebarEntryUnreadCount SimpleText SimpleFont\">" + count + "</div>");
-                text += byteUtils.readPage("/sidebar-entry-passive.html", params);
+    /*
+     * The sidebar is windowed: "users" carries the pinned entries (broadcast, the open conversation and
+     * conversations with unread messages, most unread first) followed by the first page of the directory.
+     * Further pages, search results and single entries are sent on request, so no frame grows with the
+     * number of users. The second line of "users" and "users-page" is the offset of the next page or -1.
+     */
+    private String createUsersListUIComponent(Session session) throws IOException {
+        String username = session.getUser().getUsername();
+        UserDirectory.Snapshot snapshot = userDirectory.getSnapshot();
+        Map<String, Integer> counts = unreadCounters.getAll(username);
+        List<String> unread = new ArrayList<>(counts.keySet());
+        unread.sort((a, b) -> counts.get(b) - counts.get(a));
+        Set<String> pinned = new LinkedHashSet<>();
+        pinned.add(SimpleChatApplication.broadcastUsername);
+        pinned.add(session.getOtherSideUsername());
+        pinned.addAll(unread.subList(0, Math.min(unread.size(), sidebarPageSize)));
+        StringBuilder sb = new StringBuilder();
+        for (String name : pinned) {
+            UserDirectory.Entry entry = snapshot.find(name);
+            if (entry != null) {
+                sb.append(createUserEntryUIComponent(session, entry, true));
             }
         }
-        return text;
+        return "users\n" + appendUsersPage(sb, session, snapshot, 0);
+    }
+
+    private String createUsersPageUIComponent(Session session, int offset) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        return "users-page\n" + appendUsersPage(sb, session, userDirectory.getSnapshot(), offset);
+    }
+
+    private String appendUsersPage(StringBuilder sb, Session session, UserDirectory.Snapshot snapshot, int offset) throws IOException {
+        for (UserDirectory.Entry entry : snapshot.page(offset, sidebarPageSize)) {
+            sb.append(createUserEntryUIComponent(session, entry, false));
+        }
+        int next = offset + sidebarPageSize;
+        return ((next < snapshot.getEntries().size()) ? next : -1) + "\n" + sb;
+    }
+
+    private String createUsersSearchUIComponent(Session session, String query) throws IOException {
+        StringBuilder sb = new StringBuilder("users-search\n").append(query).append("\n");
+        for (UserDirectory.Entry entry : userDirectory.getSnapshot().search(query, sidebarPageSize)) {
+            sb.append(createUserEntryUIComponent(session, entry, false));
+        }
+        return sb.toString();
+    }
+
+    private String createUserEntryUIComponent(Session session, UserDirectory.Entry user, boolean pinned) throws IOException {
+        boolean active = user.getUsername().equals(session.getOtherSideUsername());
+        int count = active ? 0 : unreadCounters.get(session.getUser().getUsername(), user.getUsername());
+        return createUserEntryUIComponent(user, pinned, active, count);
+    }
+
+    private String createUserEntryUIComponent(UserDirectory.Entry user, boolean pinned, boolean active, int count) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        params.put("username", user.getUsername());
+        params.put("name", user.getPresentation());
+        params.put("classes", (active ? "SidebarEntryActive " : "") + (pinned ? "SidebarEntryPinned" : ""));
+        params.put("count", "" + count);
+        params.put("countStyle", (count == 0) ? "display: none" : "");
+        return byteUtils.readPage("/sidebar-entry.html", params);
     }
 
     private void changePage(Session session) throws IOException {
         String otherSideUsername = session.getOtherSideUsername();
-        session.getWebSocketSession().sendMessage(new TextMessage(
-                createUsersListUIComponent(session.getUser().getUsername(), otherSideUsername)));
-        sendMessages(session.getUser().getUsername(), otherSideUsername, session, System.currentTimeMillis(), "page");
-        UnreadMessageCounter unreadMessageCounter = unreadMessageCounterRepository.findByCurrentSideUsernameAndOtherSideUsername(session.getUser().getUsername(), otherSideUsername);
-        if (unreadMessageCounter != null) {
-            unreadMessageCounterRepository.delete(unreadMessageCounter);
-        }
+        session.getOutboundQueue().offer(OutboundFrame.live("active\n" + otherSideUsername));
+        sendMessages(session.getUser().getUsername(), otherSideUsername, session, Long.MAX_VALUE, "page");
+        unreadCounters.markRead(session.getUser().getUsername(), otherSideUsername);
     }
 
-    private void routeMessage(String senderUsername, Message msg) throws IOException {
+    private boolean routeMessage(String senderUsername, Message msg) throws IOException {
         Session currentSession = sessionMapFromUN.get(senderUsername);
-        String otherSideUsername = currentSession.getOtherSideUsername();
-        msg.setSenderUsername(senderUsername);
-        msg.setReceiverUsername(otherSideUsername);
-        messageRepository.save(msg);
-        String selfPack = "msg\n" + (msg.isTextMessage() ? createTextMessageUIComponent(msg, true) : createFileMessageUIComponent(msg, true));
-        String otherPack = "msg\n" + (msg.isTextMessage() ? createTextMessageUIComponent(msg, false) : createFileMessageUIComponent(msg, false));
-        routePacket(selfPack, otherPack, currentSession);
+        if (currentSession == null) {
+            return false;
+        }
+        String otherSideUsername;
+        OutboundFrame otherFrame[] = new OutboundFrame[1];
+        ReentrantLock lock = userLocks.get(senderUsername);
+        try {
+            lock.lock();
+            otherSideUsername = currentSession.getOtherSideUsername();
+            msg.setSenderUsername(senderUsername);
+            msg.setReceiverUsername(otherSideUsername);
+            msg.setConversationKey(Message.conversationKey(senderUsername, otherSideUsername));
+            // delivery does not wait for the database, the sender is told when the message is stored; the
+            // message is cached and rendered before the result is reported, so a failure evicts it for good
+            messageWriter.write(msg, x -> {
+                        conversationTails.append(x);
+                        currentSession.getOutboundQueue().offer(OutboundFrame.live(createSelfPack(x, currentSession)));
+                        otherFrame[0] = createOtherSideFrame(x);
+                    },
+                    x -> currentSession.getOutboundQueue().offer(OutboundFrame.live("persisted\n" + x.getId())),
+                    x -> {
+                        conversationTails.remove(x);
+                        fragmentCache.evict(x.getId());
+                        currentSession.getOutboundQueue().offer(OutboundFrame.live("persist-failed\n" + x.getId()));
+                    });
+        } finally {
+            lock.unlock();
+        }
+        routePacket(otherFrame[0], senderUsername, otherSideUsername, msg);
+        return true;
     }
 
-    private void routePacket(String selfPack, String otherPack, Session currentSession) throws IOException {
-        String senderUsername = currentSession.getUser().getUsername();
-        String otherSideUsername = currentSession.getOtherSideUsername();
-        currentSession.getWebSocketSession().sendMessage(new TextMessage(selfPack));
+    private OutboundFrame createOtherSideFrame(Message msg) {
+        try {
+            return OutboundFrame.live("msg\n" + createMessageUIComponent(msg, false),
+                    "msg\n" + objectMapper.writeValueAsString(createMessageRecord(msg, false, false)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the "msg" frame of a new message for its sender, called once the message is queued for writing.
+     */
+    private String createSelfPack(Message msg, Session session) {
+        try {
+            return "msg\n" + (session.isCompact()
+                    ? objectMapper.writeValueAsString(createMessageRecord(msg, true, true))
+                    : msg.isTextMessage() ? createTextMessageUIComponent(msg, true, true) : createFileMessageUIComponent(msg, true, true));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void routePacket(String otherPack, String senderUsername, String otherSideUsername) throws IOException {
+        routePacket(OutboundFrame.live(otherPack), senderUsername, otherSideUsername, null);
+    }
+
+    /**
+     * Delivers a frame to the other side of a conversation, unread is the message to count as unread for
+     * recipients not looking at the conversation (null if nothing is counted).
+     */
+    private void routePacket(OutboundFrame frame, String senderUsername, String otherSideUsername, Message unread) throws IOException {
         if (otherSideUsername.equals(SimpleChatApplication.broadcastUsername)) {
-            for (User user : userRepository.findAll()) {
-                String username = user.getUsername();
-                if (username.equals(senderUsername) || username.equals(SimpleChatApplication.broadcastUsername)) {
-                    continue;
-                }
-                Session userSession = sessionMapFromUN.get(username);
-                sendOtherSideMessage(otherPack, otherSideUsername, username, userSession);
-            }
+            broadcastFanout.deliver(senderUsername, frame, unread, sessionMapFromUN.values(), session ->
+                    sendUnreadCount(session, otherSideUsername));
         } else {
             if (!otherSideUsername.equals(senderUsername)) {
                 Session otherSideSession = sessionMapFromUN.get(otherSideUsername);
-                sendOtherSideMessage(otherPack, senderUsername, otherSideUsername, otherSideSession);
+                sendOtherSideMessage(frame, senderUsername, otherSideUsername, otherSideSession, unread);
             }
         }
     }
 
-    private void sendOtherSideMessage(String msg, String otherSideUsername, String senderUsername, Session session) throws IOException {
-        if ((session != null) && session.getOtherSideUsername().equals(otherSideUsername)) {
-            session.getWebSocketSession().sendMessage(new TextMessage(msg));
-        } else {
-            UnreadMessageCounter unreadMessageCounter = unreadMessageCounterRepository.findByCurrentSideUsernameAndOtherSideUsername(senderUsername, otherSideUsername);
-            int cnt = (unreadMessageCounter == null) ? 1 : (unreadMessageCounter.getCount() + 1);
-            if (unreadMessageCounter == null) {
-                unreadMessageCounter = new UnreadMessageCounter();
-                unreadMessageCounter.setCurrentSideUsername(senderUsername);
-                unreadMessageCounter.setOtherSideUsername(otherSideUsername);
-            }
-            unreadMessageCounter.setCount(cnt);
-            unreadMessageCounterRepository.save(unreadMessageCounter);
-            if (session != null) {
-                session.getWebSocketSession().sendMessage(new TextMessage(
-                        createUsersListUIComponent(session.getUser().getUsername(), session.getOtherSideUsername())));
+    private void sendOtherSideMessage(OutboundFrame frame, String otherSideUsername, String senderUsername, Session session, Message unread) throws IOException {
+        ReentrantLock lock = userLocks.get(senderUsername);
+        try {
+            lock.lock();
+            if ((session != null) && session.getOtherSideUsername().equals(otherSideUsername)) {
+                session.getOutboundQueue().offer(frame);
+            } else if (unread != null) {
+                incrementUnreadMessageCounter(otherSideUsername, senderUsername, session, unread);
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void incrementUnreadMessageCounter(String otherSideUsername, String senderUsername, Session session, Message msg) throws IOException {
+        if (session != null) {
+            unreadCounters.increment(senderUsername, otherSideUsername, msg);
+            sendUnreadCount(session, otherSideUsername);
         }
     }
 
+    private void sendUnreadCount(Session session, String otherSideUsername) {
+        int count = unreadCounters.get(session.getUser().getUsername(), otherSideUsername);
+        session.getOutboundQueue().offer(OutboundFrame.live("unread-set\n" + otherSideUsername + " " + count));
+    }
+
     public void deleteMessage(Message msg, Session currentSession) throws IOException {
         String pack = "delete-msg\n" + msg.getId();
         messageRepository.delete(msg);
-        routePacket(pack, pack, currentSession);
+        conversationTails.remove(msg);
+        fragmentCache.evict(msg.getId());
+        String senderUsername = currentSession.getUser().getUsername();
+        String otherSideUsername;
+        ReentrantLock lock = userLocks.get(senderUsername);
+        try {
+            lock.lock();
+            otherSideUsername = currentSession.getOtherSideUsername();
+            currentSession.getOutboundQueue().offer(OutboundFrame.live(pack));
+        } finally {
+            lock.unlock();
+        }
+        routePacket(pack, senderUsername, otherSideUsername);
     }
 }
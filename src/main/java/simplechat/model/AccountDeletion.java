@@ -0,0 +1,27 @@
+package simplechat.model;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+
+/**
+ * A deleted account whose messages and files are still being purged, removed when the purge is done.
+ */
+@Entity
+@NoArgsConstructor
+@Getter
+@Setter
+public class AccountDeletion extends BaseModel {
+
+    @Column(nullable = false, unique = true, length = 100)
+    private String username;
+
+    @Column
+    private long purgedMessages;
+
+    @Column
+    private long purgedFiles;
+}
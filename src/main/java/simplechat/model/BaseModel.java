@@ -3,6 +3,7 @@ package simplechat.model;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.util.Date;
@@ -15,7 +16,8 @@ import java.util.UUID;
 public class BaseModel {
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "timeOrdered")
+    @GenericGenerator(name = "timeOrdered", strategy = "simplechat.util.TimeOrderedIds")
     private UUID id;
 
     @Column
@@ -0,0 +1,44 @@
+package simplechat.model;
+
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * Stored content of uploaded files, keyed by its SHA-256 digest. Every {@link FileInfo} with the same digest
+ * shares the data and preview files of one blob; refCount is the number of such file infos.
+ * Previews are stored next to the data as "fileDataId-width" for each width of previewSizes, which is null
+ * while they are not made yet and empty if the content could not be decoded.
+ */
+@Entity
+@NoArgsConstructor
+@Getter
+@Setter
+@Table(indexes = @Index(columnList = "digest", unique = true))
+public class FileBlob extends BaseModel {
+
+    @Column(length = 64)
+    private String digest;
+
+    @Column
+    private Long length;
+
+    @Column
+    private UUID fileDataId;
+
+    @Column
+    private UUID imgPrevFileDataId;
+
+    @Column(length = 100)
+    private String previewSizes;
+
+    @Column
+    private int refCount;
+}
@@ -21,6 +21,9 @@ public class FileInfo extends BaseModel {
     @Column
     private Long length;
 
+    @Column(length = 64)
+    private String digest;
+
     @Column
     private UUID fileDataId;
 
@@ -5,14 +5,21 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+import simplechat.SimpleChatApplication;
+import simplechat.util.TimeOrderedIds;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import java.util.UUID;
 
 @Entity
 @NoArgsConstructor
 @Getter
 @Setter
+@Table(indexes = {@Index(columnList = "conversationKey, seq"), @Index(columnList = "senderUsername"),
+        @Index(columnList = "receiverUsername")})
 public class Message extends BaseModel implements Comparable<Message> {
 
     @Column(length = 100)
@@ -21,6 +28,9 @@ public class Message extends BaseModel implements Comparable<Message> {
     @Column(length = 100)
     private String receiverUsername;
 
+    @Column(length = 201)
+    private String conversationKey;
+
     @Column
     private boolean textMessage;
 
@@ -36,6 +46,12 @@ public class Message extends BaseModel implements Comparable<Message> {
     @Column
     private Long date;
 
+    /**
+     * Position in the history, strictly increasing in the order messages are sent (see {@link TimeOrderedIds}).
+     */
+    @Column
+    private Long seq;
+
     @Column
     private UUID fileInfoId;
 
@@ -43,15 +59,30 @@ public class Message extends BaseModel implements Comparable<Message> {
         Message m = new Message();
         m.setSenderUsername(senderUsername);
         m.setReceiverUsername(receiverUsername);
+        m.setConversationKey(conversationKey);
         m.setTextMessage(textMessage);
         m.setImageFile(imageFile);
         m.setSenderPresentation(senderPresentation);
         m.setBody(body);
         m.setDate(date);
+        m.setSeq(seq);
         m.setFileInfoId(fileInfoId);
         return m;
     }
 
+    /**
+     * Returns the key shared by all messages between two users, "broadcast" for the broadcast page. The
+     * usernames are ordered and separated by '/', which usernames can not contain.
+     */
+    public static String conversationKey(String senderUsername, String receiverUsername) {
+        if (SimpleChatApplication.broadcastUsername.equals(receiverUsername)) {
+            return SimpleChatApplication.broadcastUsername;
+        }
+        return (senderUsername.compareTo(receiverUsername) <= 0)
+                ? senderUsername + "/" + receiverUsername
+                : receiverUsername + "/" + senderUsername;
+    }
+
     @Override
     public int compareTo(Message message) {
         return date.compareTo(message.getDate());
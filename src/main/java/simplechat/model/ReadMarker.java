@@ -0,0 +1,39 @@
+package simplechat.model;
+
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * The sequence number up to which a user has read a conversation; newer messages of the conversation are
+ * unread. Sequence numbers are strictly increasing, so a message sent in the millisecond the conversation
+ * was read is on one side of the marker or the other, never on both.
+ */
+@Entity
+@NoArgsConstructor
+@Getter
+@Setter
+@Table(indexes = @Index(columnList = "username, otherSideUsername", unique = true))
+public class ReadMarker extends BaseModel {
+
+    @Column(length = 100)
+    private String username;
+
+    @Column(length = 100)
+    private String otherSideUsername;
+
+    @Column
+    private Long lastReadSeq;
+
+    /**
+     * Only set on markers saved before they held sequence numbers, converted on startup.
+     */
+    @Column
+    private Long lastReadDate;
+}
@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.springframework.web.socket.WebSocketSession;
+import simplechat.util.OutboundQueue;
 
 @NoArgsConstructor
 @Getter
@@ -15,21 +16,22 @@ public class Session {
 
     private User user;
 
-    private Long lastModified;
+    private volatile long lastModified;
 
     private String redirectedUri;
 
     private WebSocketSession webSocketSession;
 
+    private OutboundQueue outboundQueue;
+
     private String otherSideUsername;
 
-    public Session(String id, User user, Long lastModified) {
+    // speaks the compact protocol: messages are sent as JSON records instead of HTML
+    private boolean compact;
+
+    public Session(String id, User user, long lastModified) {
         this.id = id;
         this.user = user;
         this.lastModified = lastModified;
     }
-
-    public void logout() {
-        setUser(null);
-    }
 }
@@ -8,6 +8,9 @@ import lombok.Setter;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 
+/**
+ * Former per-recipient unread counter, replaced by {@link ReadMarker}. Only read to migrate existing rows.
+ */
 @Entity
 @NoArgsConstructor
 @Getter
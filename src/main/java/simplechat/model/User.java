@@ -35,6 +35,20 @@ public class User extends BaseModel implements Comparable<User> {
     @Transient
     private Boolean rememberMe;
 
+    /**
+     * Conversations without a {@link ReadMarker} count as read up to this date.
+     */
+    @Column
+    private Long readBaseline;
+
+    @Override
+    public void onPrePersist() {
+        super.onPrePersist();
+        if (readBaseline == null) {
+            readBaseline = getCreatedDate().getTime();
+        }
+    }
+
     public static String validateFirstname(String s) {
         int lb = 1, ub = 90;
         if (s.length() < lb || s.length() > ub) {
@@ -0,0 +1,15 @@
+package simplechat.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import simplechat.model.AccountDeletion;
+
+import java.util.UUID;
+
+@Repository
+public interface AccountDeletionRepository extends JpaRepository<AccountDeletion, UUID> {
+
+    public AccountDeletion findByUsername(String username);
+
+    public boolean existsByUsername(String username);
+}
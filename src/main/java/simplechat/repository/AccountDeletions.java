@@ -0,0 +1,191 @@
+package simplechat.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import simplechat.model.AccountDeletion;
+import simplechat.model.FileInfo;
+import simplechat.model.Message;
+import simplechat.util.FragmentCache;
+import simplechat.util.PreviewCache;
+import simplechat.util.StripedLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Purges the messages and files of deleted accounts in the background. The account itself is deleted (and
+ * so hidden) right away, an {@link AccountDeletion} row records the pending purge. One job at a time deletes
+ * the messages in chunks of accountDeletionChunkSize with set based deletes, releases their files per chunk
+ * and saves its progress, so purges left over by a restart are resumed by {@link #resume()}.
+ * Signups and deletions of a username hold {@link #getLock(String)}, so a name is never taken between the
+ * delete of an account and the record of its purge.
+ * Pending jobs and purged messages are published as "simplechat.accounts.deletion.*" metrics.
+ */
+@Component
+public class AccountDeletions {
+
+    @Autowired
+    private AccountDeletionRepository accountDeletionRepository;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private FileInfoRepository fileInfoRepository;
+
+    @Autowired
+    private FileBlobs fileBlobs;
+
+    @Autowired
+    private MessageWriter messageWriter;
+
+    @Autowired
+    private ConversationTails conversationTails;
+
+    @Autowired
+    private UnreadCounters unreadCounters;
+
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private PreviewCache previewCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${accountDeletionChunkSize}")
+    private int chunkSize;
+
+    @Value("${accountDeletionLockStripes}")
+    private int lockStripes;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final AtomicInteger pending = new AtomicInteger();
+    private ExecutorService executor;
+    private Counter purgedMessages;
+    private StripedLock usernameLocks;
+
+    @PostConstruct
+    public void init() {
+        usernameLocks = StripedLock.of(lockStripes);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "account-deletion");
+            t.setDaemon(true);
+            return t;
+        });
+        purgedMessages = meterRegistry.counter("simplechat.accounts.deletion.messages");
+        meterRegistry.gauge("simplechat.accounts.deletion.pending", pending);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public ReentrantLock getLock(String username) {
+        return usernameLocks.get(username);
+    }
+
+    /**
+     * Records the purge of a deleted account and queues it, called under the lock of the username.
+     */
+    public void delete(String username) {
+        if (accountDeletionRepository.findByUsername(username) == null) {
+            AccountDeletion deletion = new AccountDeletion();
+            deletion.setUsername(username);
+            accountDeletionRepository.save(deletion);
+        }
+        submit(username);
+    }
+
+    /**
+     * Queues the purges that were not finished before the last shutdown.
+     */
+    public void resume() {
+        for (AccountDeletion deletion : accountDeletionRepository.findAll()) {
+            logger.info("Resuming purge of " + deletion.getUsername() + " after " + deletion.getPurgedMessages() + " messages");
+            submit(deletion.getUsername());
+        }
+    }
+
+    /**
+     * A username stays taken until the messages of its deleted account are purged.
+     */
+    public boolean isPending(String username) {
+        return accountDeletionRepository.existsByUsername(username);
+    }
+
+    private void submit(String username) {
+        pending.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                purge(username);
+            } catch (RuntimeException e) {
+                logger.error("Purge of " + username + " failed, it is retried on the next start", e);
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    private void purge(String username) {
+        AccountDeletion deletion = accountDeletionRepository.findByUsername(username);
+        if (deletion == null) {
+            return;
+        }
+        unreadCounters.deleteAllOf(username);
+        // messages sent to the account just before it was deleted may still be queued
+        messageWriter.sync();
+        while ((purgeChunk(deletion, messageRepository.findBySenderUsername(username, PageRequest.of(0, chunkSize))) > 0)
+                || (purgeChunk(deletion, messageRepository.findByReceiverUsername(username, PageRequest.of(0, chunkSize))) > 0)) {
+            logger.info("Purged " + deletion.getPurgedMessages() + " messages and " + deletion.getPurgedFiles() + " files of " + username);
+        }
+        accountDeletionRepository.delete(deletion);
+        logger.info("Purge of " + username + " done");
+    }
+
+    private int purgeChunk(AccountDeletion deletion, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        List<UUID> ids = new ArrayList<>();
+        List<UUID> fileInfoIds = new ArrayList<>();
+        for (Message m : messages) {
+            ids.add(m.getId());
+            if (!m.isTextMessage()) {
+                fileInfoIds.add(m.getFileInfoId());
+            }
+        }
+        List<FileInfo> infos = fileInfoIds.isEmpty() ? new ArrayList<>() : fileInfoRepository.findAllById(fileInfoIds);
+        // rows go first: a crash before the files are released leaks files, never releases them twice
+        messageRepository.deleteByIds(ids);
+        if (!fileInfoIds.isEmpty()) {
+            fileInfoRepository.deleteByIds(fileInfoIds);
+        }
+        for (Message m : messages) {
+            conversationTails.remove(m);
+            fragmentCache.evict(m.getId());
+        }
+        infos.forEach(x -> previewCache.evict(x.getId()));
+        fileBlobs.releaseAll(infos);
+        deletion.setPurgedMessages(deletion.getPurgedMessages() + messages.size());
+        deletion.setPurgedFiles(deletion.getPurgedFiles() + infos.size());
+        accountDeletionRepository.save(deletion);
+        purgedMessages.increment(messages.size());
+        return messages.size();
+    }
+}
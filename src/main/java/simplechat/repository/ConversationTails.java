@@ -0,0 +1,220 @@
+package simplechat.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.model.Message;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The newest conversationTailSize messages of recently used conversations, so page switches and scrolling
+ * back through recent history need no query. A tail is loaded on first access and then kept up to date by
+ * {@link #append(Message)} and {@link #remove(Message)}. Tails of the least recently used conversations are
+ * dropped while more than conversationTailMaxMessages messages are cached in total, every tail counting as one
+ * message more than it holds so that empty tails are dropped too. Every tail has its own lock, so loading the
+ * tail of one conversation never holds up the others.
+ */
+@Component
+public class ConversationTails {
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private MessageWriter messageWriter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${conversationTailSize}")
+    private int tailSize;
+
+    @Value("${conversationTailMaxMessages}")
+    private int maxMessages;
+
+    private final Map<String, Tail> tails = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private Counter hits;
+    private Counter misses;
+
+    private static class Tail {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // oldest first, ordered by seq
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+        // true if there are no older messages in the database
+        private boolean complete;
+
+        private boolean loaded;
+
+        // true once dropped from the cache, it is no longer counted in size
+        private boolean evicted;
+
+        private volatile long lastUsed;
+    }
+
+    @PostConstruct
+    public void init() {
+        hits = meterRegistry.counter("simplechat.messages.tail.hits");
+        misses = meterRegistry.counter("simplechat.messages.tail.misses");
+        meterRegistry.gauge("simplechat.messages.tail.size", size, AtomicInteger::get);
+    }
+
+    /**
+     * Same as {@link MessageRepository#fetchMessages(int, String, long)}, answered from the tail of the
+     * conversation if it holds the whole page.
+     */
+    public List<Message> fetchMessages(int limit, String conversationKey, long seq) {
+        Tail tail = tails.computeIfAbsent(conversationKey, x -> {
+            size.incrementAndGet();
+            return new Tail();
+        });
+        boolean hit;
+        List<Message> page = new ArrayList<>(limit);
+        try {
+            tail.lock.lock();
+            if (!tail.loaded) {
+                load(conversationKey, tail);
+            }
+            tail.lastUsed = clock.incrementAndGet();
+            Iterator<Message> it = tail.messages.descendingIterator();
+            while (it.hasNext() && (page.size() < limit)) {
+                Message m = it.next();
+                if (m.getSeq() < seq) {
+                    page.add(m);
+                }
+            }
+            hit = (page.size() == limit) || tail.complete;
+        } finally {
+            tail.lock.unlock();
+        }
+        evict();
+        if (hit) {
+            hits.increment();
+            return page;
+        }
+        misses.increment();
+        messageWriter.sync();
+        return messageRepository.fetchMessages(limit, conversationKey, seq);
+    }
+
+    /**
+     * Adds a copy of a new message to the tail of its conversation, must be called after it is queued to the
+     * {@link MessageWriter}. The writer thread hands the message itself to Hibernate, which sets its dates
+     * while readers of the tail may be rendering it.
+     */
+    public void append(Message msg) {
+        Tail tail = tails.get(msg.getConversationKey());
+        if (tail == null) {
+            return;
+        }
+        try {
+            tail.lock.lock();
+            // a tail that is not loaded yet reads the message from the database
+            if (!tail.loaded || tail.evicted) {
+                return;
+            }
+            Message copy = msg.clone();
+            copy.setId(msg.getId());
+            if (tail.messages.isEmpty() || (tail.messages.peekLast().getSeq() < msg.getSeq())) {
+                tail.messages.addLast(copy);
+            } else {
+                // the message is already there if the tail was loaded after it was written
+                for (Message m : tail.messages) {
+                    if (m.getId().equals(msg.getId())) {
+                        return;
+                    }
+                }
+                List<Message> sorted = new ArrayList<>(tail.messages);
+                sorted.add(copy);
+                sorted.sort(Comparator.comparing(Message::getSeq));
+                tail.messages.clear();
+                tail.messages.addAll(sorted);
+            }
+            size.incrementAndGet();
+            if (tail.messages.size() > tailSize) {
+                tail.messages.removeFirst();
+                tail.complete = false;
+                size.decrementAndGet();
+            }
+        } finally {
+            tail.lock.unlock();
+        }
+        evict();
+    }
+
+    public void remove(Message msg) {
+        Tail tail = tails.get(msg.getConversationKey());
+        if (tail == null) {
+            return;
+        }
+        try {
+            tail.lock.lock();
+            if (tail.messages.removeIf(x -> x.getId().equals(msg.getId())) && !tail.evicted) {
+                size.decrementAndGet();
+            }
+        } finally {
+            tail.lock.unlock();
+        }
+    }
+
+    private void load(String conversationKey, Tail tail) {
+        // called with the lock of the tail held, so messages appended before it was loaded are committed after this
+        messageWriter.sync();
+        List<Message> messages = messageRepository.fetchMessages(tailSize, conversationKey, Long.MAX_VALUE);
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            tail.messages.addLast(messages.get(i));
+        }
+        tail.complete = messages.size() < tailSize;
+        tail.loaded = true;
+        if (!tail.evicted) {
+            size.addAndGet(messages.size());
+        }
+    }
+
+    /**
+     * Drops the least recently used tails while too many messages are cached. Runs in one thread at a time,
+     * the others go on without waiting for it.
+     */
+    private void evict() {
+        if ((size.get() <= maxMessages) || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Tail>> entries = new ArrayList<>(tails.entrySet());
+            entries.sort(Comparator.comparingLong(x -> x.getValue().lastUsed));
+            for (Map.Entry<String, Tail> entry : entries) {
+                if (size.get() <= maxMessages) {
+                    break;
+                }
+                // a tail that is locked is loading or in use, it is skipped rather than waited for
+                Tail tail = entry.getValue();
+                if (tail.lock.tryLock()) {
+                    try {
+                        if (tails.remove(entry.getKey(), tail)) {
+                            tail.evicted = true;
+                            size.addAndGet(-tail.messages.size() - 1);
+                        }
+                    } finally {
+                        tail.lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package simplechat.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import simplechat.model.FileBlob;
+
+import java.util.UUID;
+
+@Repository
+public interface FileBlobRepository extends JpaRepository<FileBlob, UUID> {
+
+    public FileBlob findByDigest(String digest);
+}
@@ -0,0 +1,156 @@
+package simplechat.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+import simplechat.model.FileBlob;
+import simplechat.model.FileInfo;
+import simplechat.util.StripedLock;
+import simplechat.util.UploadReceiver;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content addressed, reference counted storage of uploaded files. Once an upload is received and its
+ * digest computed, it is linked to the existing {@link FileBlob} with that digest (if any) and its own copy
+ * is dropped, so popular files are stored (and get previews) once. Files are deleted when the last
+ * {@link FileInfo} referring to them is released. The blob of a digest is only read and changed while
+ * holding the lock of that digest (fileBlobLockStripes stripes), so work on different content runs in
+ * parallel; the expensive parts (receiving the data, making previews) run outside of any lock.
+ */
+@Component
+public class FileBlobs {
+
+    @Autowired
+    private FileBlobRepository fileBlobRepository;
+
+    @Value("${fileBlobLockStripes}")
+    private int lockStripes;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private StripedLock digestLocks;
+
+    @PostConstruct
+    public void init() {
+        digestLocks = StripedLock.of(lockStripes);
+    }
+
+    /**
+     * Returns the blob for the content of a received upload with one more reference. The upload's file
+     * becomes the data of a new blob, or is deleted if the content is already stored.
+     */
+    public FileBlob store(UploadReceiver.Upload upload) {
+        FileBlob blob;
+        ReentrantLock lock = digestLocks.get(upload.getDigest());
+        try {
+            lock.lock();
+            blob = fileBlobRepository.findByDigest(upload.getDigest());
+            if (blob == null) {
+                blob = new FileBlob();
+                blob.setDigest(upload.getDigest());
+                blob.setLength(upload.getLength());
+                blob.setFileDataId(UUID.fromString(upload.getFile().getName()));
+                blob.setRefCount(1);
+                return fileBlobRepository.save(blob);
+            }
+            blob.setRefCount(blob.getRefCount() + 1);
+            fileBlobRepository.save(blob);
+        } finally {
+            lock.unlock();
+        }
+        delete(upload.getFile().getName());
+        return blob;
+    }
+
+    /**
+     * Records the preview sizes made for a blob. Returns the blob, or null if it was released in the meantime.
+     */
+    public FileBlob previewsMade(String digest, String previewSizes) {
+        ReentrantLock lock = digestLocks.get(digest);
+        try {
+            lock.lock();
+            FileBlob blob = fileBlobRepository.findByDigest(digest);
+            if (blob != null) {
+                blob.setPreviewSizes(previewSizes);
+                fileBlobRepository.save(blob);
+            }
+            return blob;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the reference of a file info, the files are deleted with the last reference. File infos created
+     * before blobs existed (without digest) own their files.
+     */
+    public void release(FileInfo info) {
+        releaseAll(Collections.singletonList(info));
+    }
+
+    /**
+     * Drops the references of several file infos at once, the files of all of them are deleted after the
+     * reference counts are updated.
+     */
+    public void releaseAll(List<FileInfo> infos) {
+        List<FileInfo> unreferenced = new ArrayList<>();
+        List<FileBlob> dropped = new ArrayList<>();
+        for (FileInfo info : infos) {
+            if (info.getDigest() == null) {
+                unreferenced.add(info);
+                continue;
+            }
+            ReentrantLock lock = digestLocks.get(info.getDigest());
+            try {
+                lock.lock();
+                FileBlob blob = fileBlobRepository.findByDigest(info.getDigest());
+                if (blob == null) {
+                    logger.warn("Missing blob " + info.getDigest() + " of file " + info.getId());
+                    continue;
+                }
+                if (blob.getRefCount() > 1) {
+                    blob.setRefCount(blob.getRefCount() - 1);
+                    fileBlobRepository.save(blob);
+                    continue;
+                }
+                fileBlobRepository.delete(blob);
+                dropped.add(blob);
+                unreferenced.add(info);
+            } finally {
+                lock.unlock();
+            }
+        }
+        dropped.forEach(x -> deletePreviews(x.getFileDataId(), x.getPreviewSizes()));
+        for (FileInfo info : unreferenced) {
+            delete(info.getFileDataId().toString());
+            if (info.getImgPrevFileDataId() != null) {
+                delete(info.getImgPrevFileDataId().toString());
+            }
+        }
+    }
+
+    /**
+     * Deletes the previews of a blob data file, previewSizes is the comma separated list of their widths.
+     */
+    public void deletePreviews(UUID fileDataId, String previewSizes) {
+        if ((previewSizes == null) || previewSizes.isEmpty()) {
+            return;
+        }
+        for (String size : previewSizes.split(",")) {
+            delete(fileDataId + "-" + size);
+        }
+    }
+
+    private void delete(String fileDataId) {
+        new File(SimpleChatApplication.uploadPath + "/" + fileDataId).delete();
+    }
+}
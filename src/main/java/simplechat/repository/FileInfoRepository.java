@@ -1,11 +1,24 @@
 package simplechat.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import simplechat.model.FileInfo;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface FileInfoRepository extends JpaRepository<FileInfo, UUID> {
+
+    public List<FileInfo> findAllByDigest(String digest);
+
+    @Transactional
+    @Modifying
+    @Query("delete from FileInfo f where f.id in :ids")
+    public int deleteByIds(@Param("ids") Collection<UUID> ids);
 }
@@ -1,44 +1,95 @@
 package simplechat.repository;
 
-import java.io.File;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import simplechat.model.Message;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 import simplechat.SimpleChatApplication;
 import simplechat.model.FileInfo;
+import simplechat.util.PreviewCache;
+import simplechat.util.TimeOrderedIds;
 
 @Repository
 public interface MessageRepository extends JpaRepository<Message, UUID> {
 
-    public List<Message> findAllByReceiverUsername(String receiver);
+    public List<Message> findByReceiverUsername(String receiver, Pageable pageable);
 
-    public List<Message> findAllBySenderUsername(String receiver);
+    public List<Message> findBySenderUsername(String sender, Pageable pageable);
 
-    @Query(value = "select * from message m where(m.date < :date) and "
-            + "(m.receiver_username=:receiver) "
-            + "order by m.date desc limit :limit", nativeQuery = true)
-    public List<Message> fetchMessages(@Param("limit") int limit, @Param("receiver") String receiver, @Param("date") long date);
+    public List<Message> findAllByFileInfoId(UUID fileInfoId);
 
-    @Query(value = "select * from message m where (m.date < :date) and "
-            + "((m.sender_username=:sender and m.receiver_username=:receiver) or "
-            + "(m.sender_username=:receiver and m.receiver_username=:sender)) "
-            + "order by m.date desc limit :limit", nativeQuery = true)
-    public List<Message> fetchMessages(@Param("limit") int limit, @Param("sender") String sender, @Param("receiver") String receiver, @Param("date") long date);
+    /**
+     * Returns the last messages of a conversation before the given sequence number, newest first. Pages are
+     * chained by the sequence number of their oldest message, so each one is a range scan on the
+     * (conversation_key, seq) index and no message is skipped at page boundaries.
+     */
+    @Query(value = "select * from message m where (m.conversation_key=:key) and (m.seq < :seq) "
+            + "order by m.seq desc limit :limit", nativeQuery = true)
+    public List<Message> fetchMessages(@Param("limit") int limit, @Param("key") String conversationKey, @Param("seq") long seq);
+
+    public List<Message> findByConversationKeyIsNullOrSeqIsNull(Pageable pageable);
+
+    /**
+     * Sets the conversation key and sequence number of messages stored before they existed, in chunks of
+     * the given size. Sequence numbers are derived from the dates, so the order of the history is kept.
+     */
+    public default long backfillHistoryKeys(int chunkSize) {
+        long count = 0;
+        long seq = 0;
+        List<Message> messages;
+        do {
+            messages = findByConversationKeyIsNullOrSeqIsNull(PageRequest.of(0, chunkSize, Sort.by("date", "id")));
+            for (Message m : messages) {
+                m.setConversationKey(Message.conversationKey(m.getSenderUsername(), m.getReceiverUsername()));
+                seq = TimeOrderedIds.of(m.getDate(), seq);
+                m.setSeq(seq);
+                count++;
+            }
+            saveAll(messages);
+        } while (messages.size() == chunkSize);
+        return count;
+    }
+
+    @Query(value = "select m.sender_username, count(*) from message m "
+            + "left join read_marker r on (r.username=:receiver and r.other_side_username=m.sender_username) "
+            + "where (m.receiver_username=:receiver) and (m.seq > coalesce(r.last_read_seq, :baseline)) and (m.seq <= :cutoff) "
+            + "group by m.sender_username", nativeQuery = true)
+    public List<Object[]> countUnreadBySender(@Param("receiver") String receiver, @Param("baseline") long baseline, @Param("cutoff") long cutoff);
+
+    @Query(value = "select count(*) from message m where (m.receiver_username=:receiver) and "
+            + "(m.sender_username<>:reader) and (m.seq > :seq) and (m.seq <= :cutoff)", nativeQuery = true)
+    public long countUnread(@Param("receiver") String receiver, @Param("reader") String reader, @Param("seq") long seq, @Param("cutoff") long cutoff);
+
+    @Query(value = "select m.date from message m where (m.receiver_username=:receiver) and "
+            + "(m.sender_username<>:reader) order by m.date desc limit 1 offset :offset", nativeQuery = true)
+    public List<Long> findUnreadBoundary(@Param("receiver") String receiver, @Param("reader") String reader, @Param("offset") int offset);
+
+    @Query(value = "select m.date from message m where (m.receiver_username=:receiver) and "
+            + "(m.sender_username=:sender) order by m.date desc limit 1 offset :offset", nativeQuery = true)
+    public List<Long> findUnreadBoundaryFrom(@Param("receiver") String receiver, @Param("sender") String sender, @Param("offset") int offset);
+
+    @Transactional
+    @Modifying
+    @Query("delete from Message m where m.id in :ids")
+    public int deleteByIds(@Param("ids") Collection<UUID> ids);
 
     @Override
     public default void delete(Message msg) {
         FileInfoRepository fileInfoRepository = simplechat.SimpleChatApplication.getBean(FileInfoRepository.class);
         if (!msg.isTextMessage()) {
             FileInfo fileInfo = fileInfoRepository.findById(msg.getFileInfoId()).get();
-            new File(SimpleChatApplication.uploadPath + "/" + fileInfo.getFileDataId()).delete();
-            if (fileInfo.getImgPrevFileDataId() != null) {
-                new File(SimpleChatApplication.uploadPath + "/" + fileInfo.getImgPrevFileDataId()).delete();
-            }
+            SimpleChatApplication.getBean(FileBlobs.class).release(fileInfo);
+            SimpleChatApplication.getBean(PreviewCache.class).evict(fileInfo.getId());
             fileInfoRepository.deleteById(fileInfo.getId());
         }
         deleteById(msg.getId());
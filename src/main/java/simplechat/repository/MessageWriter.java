@@ -0,0 +1,241 @@
+package simplechat.repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.model.Message;
+import simplechat.util.TimeOrderedIds;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind persistence of new messages. Senders only queue their messages (with ids already assigned),
+ * a writer thread inserts them in batches of at most messageWriterBatchSize, one transaction per batch,
+ * waiting at most messageWriterDelayMs for a batch to fill up. Once its batch is committed, or its row
+ * failed, the persisted or failed callback of a message is called. Readers that must see every sent message
+ * call {@link #sync()} first.
+ */
+@Component
+public class MessageWriter {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${messageWriterBatchSize}")
+    private int batchSize;
+
+    @Value("${messageWriterDelayMs}")
+    private long delayMs;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Object progress = new Object();
+    private long queued = 0;
+    private long written = 0;
+    private Thread writer;
+    private ExecutorService callbacks;
+    private Timer commitTimer;
+    private DistributionSummary batchSizes;
+
+    private static class Pending {
+
+        private final Message message;
+
+        private final Consumer<Message> persisted;
+
+        private final Consumer<Message> failed;
+
+        // the sender's assigned callback and the commit, in any order: the last one reports the result
+        private final AtomicInteger steps = new AtomicInteger();
+
+        private volatile boolean success;
+
+        private Pending(Message message, Consumer<Message> persisted, Consumer<Message> failed) {
+            this.message = message;
+            this.persisted = persisted;
+            this.failed = failed;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        commitTimer = meterRegistry.timer("simplechat.messages.commit");
+        batchSizes = meterRegistry.summary("simplechat.messages.batch");
+        meterRegistry.gauge("simplechat.messages.queue", queue, BlockingQueue::size);
+        // result callbacks may wait for locks whose holders wait in sync(), so the writer never runs them
+        callbacks = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "message-callbacks");
+            t.setDaemon(true);
+            return t;
+        });
+        writer = new Thread(this::run, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        sync();
+        writer.interrupt();
+        callbacks.shutdown();
+    }
+
+    /**
+     * Assigns the sequence number and id of a new message and queues it, so messages are queued in the order
+     * of their sequence numbers. assigned is then called on the caller's thread, outside of any lock of the
+     * writer. Once assigned has returned and the message is committed, persisted is called (failed if it
+     * could not be written), on the thread that finished last.
+     */
+    public void write(Message message, Consumer<Message> assigned, Consumer<Message> persisted, Consumer<Message> failed) {
+        Pending pending = new Pending(message, persisted, failed);
+        synchronized (progress) {
+            message.setSeq(TimeOrderedIds.next());
+            message.setId(TimeOrderedIds.uuid(message.getSeq()));
+            queued++;
+            queue.add(pending);
+        }
+        try {
+            assigned.accept(message);
+        } finally {
+            if (pending.steps.incrementAndGet() == 2) {
+                report(pending);
+            }
+        }
+    }
+
+    /**
+     * Returns a sequence number above those of all messages queued so far and below those of all messages
+     * queued later, without waiting for them to be written.
+     */
+    public long cutoff() {
+        synchronized (progress) {
+            return TimeOrderedIds.next();
+        }
+    }
+
+    /**
+     * Waits until every message queued before the call is written (or failed). Returns a sequence number
+     * above those of all these messages and below those of all messages queued later. If the thread is
+     * interrupted, it returns early with the interrupt flag set, and some of these messages may not be
+     * written yet.
+     */
+    public long sync() {
+        synchronized (progress) {
+            long cutoff = TimeOrderedIds.next();
+            long target = queued;
+            while (written < target) {
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return cutoff;
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if ((batch.size() >= batchSize) || (wait <= 0)) {
+                        break;
+                    }
+                    Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        batchSizes.record(batch.size());
+        try {
+            commitTimer.record(() -> insert(batch));
+            batch.forEach(x -> x.success = true);
+        } catch (RuntimeException e) {
+            // find the rows that break the batch, the others are still written
+            logger.warn("Batch of " + batch.size() + " messages failed, writing them one by one", e);
+            for (Pending pending : batch) {
+                try {
+                    insert(Collections.singletonList(pending));
+                    pending.success = true;
+                } catch (RuntimeException ex) {
+                    logger.error("Unable to write message " + pending.message.getId(), ex);
+                }
+            }
+        }
+        for (Pending pending : batch) {
+            if (pending.steps.incrementAndGet() == 2) {
+                callbacks.execute(() -> report(pending));
+            }
+        }
+        synchronized (progress) {
+            written += batch.size();
+            progress.notifyAll();
+        }
+    }
+
+    private void report(Pending pending) {
+        try {
+            (pending.success ? pending.persisted : pending.failed).accept(pending.message);
+        } catch (RuntimeException e) {
+            logger.warn("Message callback failed", e);
+        }
+    }
+
+    private void insert(List<Pending> batch) {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            // save (unlike persist) accepts the preassigned ids, the inserts are sent as JDBC batches on commit
+            Session session = em.unwrap(Session.class);
+            batch.forEach(x -> session.save(x.message));
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+}
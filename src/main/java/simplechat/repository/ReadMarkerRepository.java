@@ -0,0 +1,25 @@
+package simplechat.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import simplechat.model.ReadMarker;
+
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface ReadMarkerRepository extends JpaRepository<ReadMarker, UUID> {
+
+    public ReadMarker findByUsernameAndOtherSideUsername(String username, String otherSideUsername);
+
+    public List<ReadMarker> findByLastReadSeqIsNull();
+
+    @Transactional
+    @Modifying
+    @Query("delete from ReadMarker r where r.username = :username or r.otherSideUsername = :username")
+    public int deleteAllOf(@Param("username") String username);
+}
@@ -1,93 +1,172 @@
 package simplechat.repository;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import simplechat.model.Session;
 import simplechat.model.User;
 
+import javax.annotation.PostConstruct;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Sessions by id on a concurrent map, with an index of the sessions of each username. Using a session
+ * only updates its lastModified field. Idle sessions are expired by a hashed timing wheel: a session is
+ * put in the slot of its deadline (lastModified plus sessionIdleTimeoutMillis), and when the wheel reaches
+ * that slot it is either removed or, if it was used in the meantime, moved to the slot of its new deadline.
+ * Sessions log in and out through {@link #setUser(Session, User)}, which keeps the index in sync.
+ *
  * @author masoud
  */
 @Component
 public class SessionRepository {
 
-    private final Map<String, Session> map = new HashMap<>();
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    @Autowired
+    private MeterRegistry meterRegistry;
 
-    public void deleteById(String id) {
-        try {
-            lock.writeLock().lock();
-            id = id.toLowerCase();
-            map.remove(id);
-        } finally {
-            lock.writeLock().unlock();
+    @Value("${sessionIdleTimeoutMillis}")
+    private long idleTimeout;
+
+    @Value("${sessionExpiryTickMillis}")
+    private long tick;
+
+    private final Map<String, Session> map = new ConcurrentHashMap<>();
+    private final Map<String, Set<Session>> byUsername = new ConcurrentHashMap<>();
+    private List<Set<Session>> wheel;
+    private volatile long currentTick;
+    private Counter expired;
+
+    @PostConstruct
+    public void init() {
+        // deadlines are at most idleTimeout ahead, so one turn of the wheel covers all of them
+        int slots = (int) (idleTimeout / tick) + 2;
+        wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
         }
+        currentTick = System.currentTimeMillis() / tick;
+        expired = meterRegistry.counter("simplechat.sessions.expired");
+        meterRegistry.gauge("simplechat.sessions", map, Map::size);
+    }
 
+    public void deleteById(String id) {
+        Session session = map.remove(id.toLowerCase());
+        if (session != null) {
+            unindex(session);
+        }
     }
 
     public void save(Session session) {
-        try {
-            lock.writeLock().lock();
-            session.setId(session.getId().toLowerCase());
-            map.put(session.getId(), session);
-        } finally {
-            lock.writeLock().unlock();
+        session.setId(session.getId().toLowerCase());
+        Session old = map.put(session.getId(), session);
+        if ((old != null) && (old != session)) {
+            unindex(old);
         }
+        index(session);
+        schedule(session);
     }
 
-    public Optional<Session> findById(String id) {
-        try {
-            lock.readLock().lock();
-            id = id.toLowerCase();
-            if (map.containsKey(id)) {
-                return Optional.of(map.get(id));
-            } else {
-                return Optional.empty();
-            }
-        } finally {
-            lock.readLock().unlock();
+    /**
+     * Returns the session with the given id, a new one if there is none, and marks it as used now.
+     */
+    public Session touch(String id) {
+        long now = System.currentTimeMillis();
+        Session session = map.get(id.toLowerCase());
+        if (session == null) {
+            session = map.computeIfAbsent(id.toLowerCase(), k -> {
+                Session created = new Session(k, null, now);
+                schedule(created);
+                return created;
+            });
         }
+        session.setLastModified(now);
+        return session;
     }
 
-    public void deleteAll(List<Session> list) {
-        try {
-            lock.writeLock().lock();
-            list.stream().forEach(x -> map.remove(x.getId()));
-        } finally {
-            lock.writeLock().unlock();
+    /**
+     * Logs a session in or out (with a null user), keeping the username index up to date.
+     */
+    public void setUser(Session session, User user) {
+        User old = session.getUser();
+        if ((old != null) && (user != null) && old.getUsername().equals(user.getUsername())) {
+            session.setUser(user);
+            return;
         }
+        unindex(session);
+        session.setUser(user);
+        if (map.get(session.getId()) == session) {
+            index(session);
+        }
+    }
+
+    public Optional<Session> findById(String id) {
+        return Optional.ofNullable(map.get(id.toLowerCase()));
     }
 
-    public List<Session> findExpired(long l) {
-        try {
-            lock.readLock().lock();
-            List<Session> list = new ArrayList<>();
-            for (String id : map.keySet()) {
-                if (map.get(id).getLastModified() < l) {
-                    list.add(map.get(id));
+    public List<Session> findByUsername(String username) {
+        List<Session> list = new ArrayList<>();
+        Set<Session> sessions = byUsername.get(username);
+        if (sessions != null) {
+            for (Session session : sessions) {
+                User user = session.getUser();
+                if ((user != null) && user.getUsername().equals(username)) {
+                    list.add(session);
                 }
             }
-            return list;
-        } finally {
-            lock.readLock().unlock();
         }
+        return list;
     }
 
-    public List<Session> findByUsername(String username) {
-        try {
-            lock.readLock().lock();
-            List<Session> list = new ArrayList<>();
-            for (String id : map.keySet()) {
-                User user = map.get(id).getUser();
-                if ((user != null) && (user.getUsername().equals(username))) {
-                    list.add(map.get(id));
+    @Scheduled(fixedRateString = "${sessionExpiryTickMillis}", initialDelayString = "${sessionExpiryTickMillis}")
+    public void expireIdleSessions() {
+        long now = System.currentTimeMillis();
+        long target = now / tick;
+        while (currentTick < target) {
+            Set<Session> slot = wheel.get((int) (currentTick % wheel.size()));
+            currentTick++;
+            List<Session> due = new ArrayList<>(slot);
+            slot.removeAll(due);
+            for (Session session : due) {
+                if (map.get(session.getId()) != session) {
+                    continue;
+                }
+                if (session.getLastModified() + idleTimeout > now) {
+                    schedule(session);
+                } else if (map.remove(session.getId(), session)) {
+                    unindex(session);
+                    expired.increment();
                 }
             }
-            return list;
-        } finally {
-            lock.readLock().unlock();
+        }
+    }
+
+    private void schedule(Session session) {
+        long deadlineTick = (session.getLastModified() + idleTimeout) / tick;
+        wheel.get((int) (Math.max(deadlineTick, currentTick) % wheel.size())).add(session);
+    }
+
+    private void index(Session session) {
+        User user = session.getUser();
+        if (user != null) {
+            byUsername.compute(user.getUsername(), (k, sessions) -> {
+                sessions = (sessions != null) ? sessions : ConcurrentHashMap.newKeySet();
+                sessions.add(session);
+                return sessions;
+            });
+        }
+    }
+
+    private void unindex(Session session) {
+        User user = session.getUser();
+        if (user != null) {
+            byUsername.computeIfPresent(user.getUsername(), (k, sessions) -> {
+                sessions.remove(session);
+                return sessions.isEmpty() ? null : sessions;
+            });
         }
     }
 }
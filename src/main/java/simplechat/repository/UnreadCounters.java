@@ -0,0 +1,222 @@
+package simplechat.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+import simplechat.model.Message;
+import simplechat.model.ReadMarker;
+import simplechat.model.UnreadMessageCounter;
+import simplechat.model.User;
+import simplechat.util.TimeOrderedIds;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Unread message counts derived from read markers. A {@link ReadMarker} keeps the sequence number up to which
+ * a user has read a conversation, so sending a message never writes anything per recipient. The counts of
+ * connected users are kept in memory: rebuilt from the message table on connect, incremented while
+ * the user looks at another conversation and cleared when a conversation is read.
+ * Callers hold the stripe of the user whose counters they touch, except for {@link #count}.
+ */
+@Component
+public class UnreadCounters {
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private MessageWriter messageWriter;
+
+    @Autowired
+    private ReadMarkerRepository readMarkerRepository;
+
+    @Autowired
+    private UnreadMessageCounterRepository unreadMessageCounterRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Map<String, Counts> counters = new ConcurrentHashMap<>();
+
+    /**
+     * The counts of one connected user. Messages up to cutoff are counted by the load, later ones by
+     * {@link #increment}. Conversations read while loading are kept in read, so the load does not bring
+     * their counts back.
+     */
+    private static class Counts {
+
+        private final Map<String, Integer> map = new HashMap<>();
+
+        private final long cutoff;
+
+        private Set<String> read = new HashSet<>();
+
+        private Counts(long cutoff) {
+            this.cutoff = cutoff;
+        }
+    }
+
+    /**
+     * Starts counting for a user who has just connected and returns the cutoff to pass to {@link #count}.
+     * Messages above the cutoff are counted from now on, the others once the loaded counts are applied.
+     */
+    public long open(String username) {
+        Counts counts = new Counts(messageWriter.cutoff());
+        counters.put(username, counts);
+        return counts.cutoff;
+    }
+
+    /**
+     * Counts the unread messages of a user up to cutoff. Waits for the message writer and queries the
+     * database, so it is called without holding any stripe.
+     */
+    public Map<String, Integer> count(User user, long cutoff) {
+        String username = user.getUsername();
+        long baseline = (user.getReadBaseline() == null) ? 0 : TimeOrderedIds.lastOf(user.getReadBaseline());
+        Map<String, Integer> map = new HashMap<>();
+        messageWriter.sync();
+        for (Object row[] : messageRepository.countUnreadBySender(username, baseline, cutoff)) {
+            map.put((String) row[0], ((Number) row[1]).intValue());
+        }
+        ReadMarker marker = readMarkerRepository.findByUsernameAndOtherSideUsername(username, SimpleChatApplication.broadcastUsername);
+        long since = ((marker == null) || (marker.getLastReadSeq() == null)) ? baseline : marker.getLastReadSeq();
+        int broadcastCount = (int) messageRepository.countUnread(SimpleChatApplication.broadcastUsername, username, since, cutoff);
+        if (broadcastCount > 0) {
+            map.put(SimpleChatApplication.broadcastUsername, broadcastCount);
+        }
+        return map;
+    }
+
+    /**
+     * Adds the counts loaded by {@link #count} to those counted since {@link #open}. Returns false if the
+     * user has disconnected or connected again in the meantime, the counts are dropped then.
+     */
+    public boolean apply(String username, long cutoff, Map<String, Integer> loaded) {
+        Counts counts = counters.get(username);
+        if ((counts == null) || (counts.cutoff != cutoff) || (counts.read == null)) {
+            return false;
+        }
+        synchronized (counts) {
+            loaded.forEach((otherSideUsername, count) -> {
+                if (!counts.read.contains(otherSideUsername)) {
+                    counts.map.merge(otherSideUsername, count, Integer::sum);
+                }
+            });
+            counts.read = null;
+        }
+        return true;
+    }
+
+    public void unload(String username) {
+        counters.remove(username);
+    }
+
+    public int get(String username, String otherSideUsername) {
+        Counts counts = counters.get(username);
+        if (counts == null) {
+            return 0;
+        }
+        synchronized (counts) {
+            return counts.map.getOrDefault(otherSideUsername, 0);
+        }
+    }
+
+    /**
+     * Returns the non-zero unread counts of a connected user by other side username.
+     */
+    public Map<String, Integer> getAll(String username) {
+        Counts counts = counters.get(username);
+        if (counts == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (counts) {
+            return new HashMap<>(counts.map);
+        }
+    }
+
+    /**
+     * Counts one more unread message for a connected user, users who are not connected get their count
+     * from the message table on their next connect.
+     */
+    public void increment(String username, String otherSideUsername, Message msg) {
+        Counts counts = counters.get(username);
+        if (counts != null) {
+            synchronized (counts) {
+                if (msg.getSeq() > counts.cutoff) {
+                    counts.map.merge(otherSideUsername, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    public void markRead(String username, String otherSideUsername) {
+        Counts counts = counters.get(username);
+        if (counts != null) {
+            synchronized (counts) {
+                counts.map.remove(otherSideUsername);
+                if (counts.read != null) {
+                    counts.read.add(otherSideUsername);
+                }
+            }
+        }
+        // every message queued so far counts as read, later ones are above the watermark
+        saveMarker(username, otherSideUsername, messageWriter.cutoff());
+    }
+
+    public void deleteAllOf(String username) {
+        readMarkerRepository.deleteAllOf(username);
+    }
+
+    /**
+     * Converts the rows of the former per-recipient counter table into read markers: a count of n puts the
+     * marker just before the n-th newest message of the conversation. Users without a baseline yet get the
+     * current time, so conversations they had no counter for stay read. Markers that still hold a date get
+     * the last sequence number of that millisecond.
+     */
+    public void migrateLegacyCounters() {
+        long now = System.currentTimeMillis();
+        List<User> users = userRepository.findAll();
+        users.removeIf(x -> x.getReadBaseline() != null);
+        users.forEach(x -> x.setReadBaseline(now));
+        userRepository.saveAll(users);
+
+        List<ReadMarker> dated = readMarkerRepository.findByLastReadSeqIsNull();
+        dated.forEach(x -> x.setLastReadSeq(TimeOrderedIds.lastOf((x.getLastReadDate() == null) ? now : x.getLastReadDate())));
+        readMarkerRepository.saveAll(dated);
+
+        List<UnreadMessageCounter> legacy = unreadMessageCounterRepository.findAll();
+        if (legacy.isEmpty()) {
+            return;
+        }
+        logger.info("Migrating " + legacy.size() + " unread message counters to read markers");
+        for (UnreadMessageCounter counter : legacy) {
+            long lastRead = now;
+            if (counter.getCount() > 0) {
+                List<Long> boundary;
+                if (SimpleChatApplication.broadcastUsername.equals(counter.getOtherSideUsername())) {
+                    boundary = messageRepository.findUnreadBoundary(counter.getOtherSideUsername(), counter.getCurrentSideUsername(), counter.getCount() - 1);
+                } else {
+                    boundary = messageRepository.findUnreadBoundaryFrom(counter.getCurrentSideUsername(), counter.getOtherSideUsername(), counter.getCount() - 1);
+                }
+                lastRead = boundary.isEmpty() ? 0 : (boundary.get(0) - 1);
+            }
+            saveMarker(counter.getCurrentSideUsername(), counter.getOtherSideUsername(), TimeOrderedIds.lastOf(lastRead));
+        }
+        unreadMessageCounterRepository.deleteAll(legacy);
+    }
+
+    private void saveMarker(String username, String otherSideUsername, long lastReadSeq) {
+        ReadMarker marker = readMarkerRepository.findByUsernameAndOtherSideUsername(username, otherSideUsername);
+        if (marker == null) {
+            marker = new ReadMarker();
+            marker.setUsername(username);
+            marker.setOtherSideUsername(otherSideUsername);
+        }
+        marker.setLastReadSeq(lastReadSeq);
+        readMarkerRepository.save(marker);
+    }
+}
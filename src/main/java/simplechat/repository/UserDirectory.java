@@ -0,0 +1,139 @@
+package simplechat.repository;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+import simplechat.model.User;
+
+import java.util.*;
+
+/**
+ * Immutable, pre-sorted snapshot of all users (broadcast first, then by presentation). Readers get the
+ * current snapshot without locking or database access, writers rebuild it with {@link #refresh()}
+ * whenever the set of users changes. Each snapshot carries a prefix index over the username, the
+ * presentation and every word of the presentation, so searches cost a binary search plus the number
+ * of returned entries instead of a scan of all users.
+ */
+@Component
+public class UserDirectory {
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized void refresh() {
+        snapshot = new Snapshot(userRepository.findAll());
+    }
+
+    @Getter
+    public static class Entry {
+
+        private final String username;
+
+        private final String presentation;
+
+        private Entry(User user) {
+            this.username = user.getUsername();
+            this.presentation = user.getPresentation();
+        }
+    }
+
+    @Getter
+    public static class Snapshot {
+
+        private final List<Entry> entries;
+
+        private final Map<String, Entry> entryMap;
+
+        private final String keys[];
+
+        private final int keyEntries[];
+
+        private Snapshot(List<User> users) {
+            List<User> sorted = new ArrayList<>(users);
+            Collections.sort(sorted, (a, b) -> {
+                boolean ab = SimpleChatApplication.broadcastUsername.equals(a.getUsername());
+                boolean bb = SimpleChatApplication.broadcastUsername.equals(b.getUsername());
+                return (ab == bb) ? a.compareTo(b) : (ab ? -1 : 1);
+            });
+            List<Entry> list = new ArrayList<>(sorted.size());
+            Map<String, Entry> map = new HashMap<>();
+            for (User user : sorted) {
+                Entry entry = new Entry(user);
+                list.add(entry);
+                map.put(entry.getUsername(), entry);
+            }
+            this.entries = Collections.unmodifiableList(list);
+            this.entryMap = Collections.unmodifiableMap(map);
+
+            List<String> keyList = new ArrayList<>();
+            List<Integer> ownerList = new ArrayList<>();
+            for (int i = 0; i < list.size(); i++) {
+                Set<String> words = new HashSet<>();
+                words.add(list.get(i).getUsername().toLowerCase());
+                String presentation = list.get(i).getPresentation().trim().toLowerCase();
+                words.add(presentation);
+                words.addAll(Arrays.asList(presentation.split("\\s+")));
+                for (String word : words) {
+                    if (!word.isEmpty()) {
+                        keyList.add(word);
+                        ownerList.add(i);
+                    }
+                }
+            }
+            Integer order[] = new Integer[keyList.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(keyList::get));
+            keys = new String[order.length];
+            keyEntries = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = keyList.get(order[i]);
+                keyEntries[i] = ownerList.get(order[i]);
+            }
+        }
+
+        public Entry find(String username) {
+            return entryMap.get(username);
+        }
+
+        /**
+         * Returns up to limit entries in directory order starting at offset.
+         */
+        public List<Entry> page(int offset, int limit) {
+            int from = Math.max(0, Math.min(offset, entries.size()));
+            return entries.subList(from, Math.min(entries.size(), from + limit));
+        }
+
+        /**
+         * Returns up to limit entries whose username, presentation or a word of the presentation starts with
+         * the query (case-insensitive). When there are more matches, the first limit in the order of the
+         * matching keys are taken, so the cost stays bounded by limit. The result is then sorted in directory
+         * order, but matches earlier in the directory may be among the ones left out.
+         */
+        public List<Entry> search(String query, int limit) {
+            String prefix = query.trim().toLowerCase();
+            if (prefix.isEmpty()) {
+                return page(0, limit);
+            }
+            int i = Arrays.binarySearch(keys, prefix);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            Set<Integer> found = new TreeSet<>();
+            for (; (i < keys.length) && (found.size() < limit) && keys[i].startsWith(prefix); i++) {
+                found.add(keyEntries[i]);
+            }
+            List<Entry> result = new ArrayList<>(found.size());
+            found.forEach(x -> result.add(entries.get(x)));
+            return result;
+        }
+    }
+}
@@ -3,12 +3,8 @@ package simplechat.util;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
-import simplechat.SimpleChatApplication;
 
-import javax.imageio.ImageIO;
 import javax.servlet.ServletContext;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.security.MessageDigest;
 import java.text.DateFormat;
@@ -26,7 +22,14 @@ public class ByteUtils {
     @Autowired
     private ServletContext servletContext;
 
+    @Autowired
+    private Templates templates;
+
     private HashMap<String, Long> lastModified = new HashMap<>();
+
+    // DateFormat is not thread safe and expensive to create
+    private static final ThreadLocal<DateFormat> timeFormat = ThreadLocal.withInitial(() ->
+            DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, Locale.getDefault()));
     private HashMap<String, byte[]> cachedBytes = new HashMap<>();
 
     public MediaType getMediaType(String fileName) {
@@ -117,33 +120,7 @@ public class ByteUtils {
     }
 
     public String readPage(String fileName, Map<String, String> params) throws IOException {
-        String page = readString(new File(SimpleChatApplication.pageResourcePath + fileName));
-        int si = 0, ei = -2;
-        StringBuilder sb = new StringBuilder();
-        while (true) {
-            int oei = ei;
-            si = page.indexOf("<%", ei + 2);
-            if (si < 0) {
-                break;
-            }
-            ei = page.indexOf("%>", si);
-            String cmd = page.substring(si + 2, ei).trim();
-            String rep;
-            switch (cmd.charAt(0)) {
-                case '$':
-                    rep = params.get(cmd.substring(1));
-                    break;
-                case '#':
-                    rep = readPage("/" + cmd.substring(1), params);
-                    break;
-                default:
-                    throw new IOException("Invalid identifier");
-            }
-            sb.append(page, oei + 2, si);
-            sb.append(rep);
-        }
-        sb.append(page, ei + 2, page.length());
-        return sb.toString();
+        return templates.render(fileName, params);
     }
 
     public String humanReadableSize(long len) {
@@ -183,27 +160,6 @@ public class ByteUtils {
     }
 
     public String formatTime(long t) {
-        Date d = new Date(t);
-        DateFormat formatter = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, Locale.getDefault());
-        return formatter.format(d);
-    }
-
-    public void makeThumbnailImage(String format, int width, InputStream input, OutputStream output, boolean closeInputStream, boolean closeOutputStream) throws IOException {
-        BufferedImage orgImg = ImageIO.read(input);
-        if (orgImg == null) {
-            return;
-        }
-        int w = Math.min(width, orgImg.getWidth());
-        int h = (int) ((double) orgImg.getHeight() / orgImg.getWidth() * w);
-        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        img.createGraphics().drawImage(orgImg.getScaledInstance(w, h, Image.SCALE_SMOOTH), 0, 0, null);
-        ImageIO.write(img, format, output);
-        if (closeOutputStream) {
-            output.flush();
-            output.close();
-        }
-        if (closeInputStream) {
-            input.close();
-        }
+        return timeFormat.get().format(new Date(t));
     }
 }
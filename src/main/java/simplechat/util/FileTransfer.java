@@ -0,0 +1,237 @@
+package simplechat.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams files to HTTP responses. Whole files and single ranges go through the container's sendfile when
+ * available (plain connectors), which copies nothing through the heap. Otherwise, and for multipart
+ * responses, FileChannel.transferTo writes to the servlet output stream, through a small heap buffer and
+ * without loading the file into memory. Supports conditional requests (If-None-Match, If-Range) and single
+ * and multiple byte ranges, overlapping and adjacent ranges are merged.
+ */
+@Component
+public class FileTransfer {
+
+    private static final int maxRanges = 16;
+    private static final String sendfileSupport = "org.apache.tomcat.sendfile.support";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static class Range {
+
+        private final long start;
+        private final long end;
+
+        private Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private long length() {
+            return end - start + 1;
+        }
+
+        private String contentRange(long length) {
+            return "bytes " + start + "-" + end + "/" + length;
+        }
+    }
+
+    /**
+     * Sends the file, the etag must identify its content (the file is never modified in place). Answers 404
+     * if the file does not exist.
+     */
+    public void send(File file, String etag, String contentType, String contentDisposition,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long length = file.length();
+        long lastModified = file.lastModified() / 1000 * 1000;
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        if (contentDisposition != null) {
+            response.setHeader("Content-Disposition", contentDisposition);
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if ((ifNoneMatch != null) && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        List<Range> ranges = null;
+        String rangeHeader = request.getHeader("Range");
+        if ((rangeHeader != null) && ifRangeMatches(request, etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, length);
+            if ((ranges != null) && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            transfer(file, 0, length, request, response);
+        } else if (ranges.size() == 1) {
+            Range range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", range.contentRange(length));
+            response.setContentLengthLong(range.length());
+            transfer(file, range.start, range.length(), request, response);
+        } else {
+            sendMultipart(file, length, ranges, contentType, response);
+        }
+    }
+
+    private boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // weak validators never match for ranges
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader("If-Range") == lastModified;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns null if the header should be ignored (malformed or too many ranges), an empty list if no
+     * range is satisfiable. The ranges are sorted and merged, so no byte is sent twice.
+     */
+    private List<Range> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String specs[] = header.substring(6).split(",");
+        if (specs.length > maxRanges) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start, end;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(0, length - suffix);
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                }
+                end = length - 1;
+                if ((dash > 0) && (dash < spec.length() - 1)) {
+                    long last = Long.parseLong(spec.substring(dash + 1));
+                    if (last < start) {
+                        return null;
+                    }
+                    end = Math.min(end, last);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if ((start < 0) || (start > end)) {
+                // not satisfiable
+                continue;
+            }
+            ranges.add(new Range(start, end));
+        }
+        return coalesce(ranges);
+    }
+
+    private List<Range> coalesce(List<Range> ranges) {
+        ranges.sort(Comparator.comparingLong(x -> x.start));
+        List<Range> merged = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            Range last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if ((last != null) && (range.start <= last.end + 1)) {
+                merged.set(merged.size() - 1, new Range(last.start, Math.max(last.end, range.end)));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private void sendMultipart(File file, long length, List<Range> ranges, String contentType,
+                               HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> heads = new ArrayList<>();
+        long contentLength = 0;
+        for (Range range : ranges) {
+            byte head[] = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + range.contentRange(length) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            heads.add(head);
+            contentLength += head.length + range.length();
+        }
+        byte tail[] = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += tail.length;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        ServletOutputStream os = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(os);
+            for (int i = 0; i < ranges.size(); i++) {
+                os.write(heads.get(i));
+                transferTo(channel, ranges.get(i).start, ranges.get(i).length(), target);
+            }
+        }
+        os.write(tail);
+    }
+
+    private void transfer(File file, long start, long count, HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        if (Boolean.TRUE.equals(request.getAttribute(sendfileSupport))) {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start);
+            request.setAttribute("org.apache.tomcat.sendfile.end", start + count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transferTo(channel, start, count, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    private void transferTo(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                logger.debug("File ended before the requested range");
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package simplechat.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Least recently used cache of rendered message HTML, one fragment per message and view (own message or
+ * someone else's), bounded by fragmentCacheBytes in total (two bytes per char).
+ */
+@Component
+public class FragmentCache {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${fragmentCacheBytes}")
+    private long capacity;
+
+    private final LinkedHashMap<String, String> fragments = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long size = 0;
+    private Counter hits;
+    private Counter misses;
+
+    @PostConstruct
+    public void init() {
+        hits = meterRegistry.counter("simplechat.fragments.hits");
+        misses = meterRegistry.counter("simplechat.fragments.misses");
+        meterRegistry.gauge("simplechat.fragments.bytes", this, x -> x.size);
+    }
+
+    public String get(UUID messageId, boolean self) {
+        String fragment;
+        try {
+            lock.lock();
+            fragment = fragments.get(key(messageId, self));
+        } finally {
+            lock.unlock();
+        }
+        (fragment != null ? hits : misses).increment();
+        return fragment;
+    }
+
+    public void put(UUID messageId, boolean self, String fragment) {
+        try {
+            lock.lock();
+            String old = fragments.put(key(messageId, self), fragment);
+            size += 2L * (fragment.length() - ((old != null) ? old.length() : 0));
+            Iterator<String> it = fragments.values().iterator();
+            while ((size > capacity) && it.hasNext()) {
+                size -= 2L * it.next().length();
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops both views of a deleted message.
+     */
+    public void evict(UUID messageId) {
+        try {
+            lock.lock();
+            for (boolean self : new boolean[]{true, false}) {
+                String old = fragments.remove(key(messageId, self));
+                if (old != null) {
+                    size -= 2L * old.length();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(UUID messageId, boolean self) {
+        return messageId + (self ? "/self" : "/other");
+    }
+}
@@ -0,0 +1,66 @@
+package simplechat.util;
+
+import lombok.Getter;
+import org.springframework.web.socket.TextMessage;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A text frame waiting in an {@link OutboundQueue}. Live frames (messages, pongs, redirects) are
+ * delivered before bulk frames (history pages). A barrier is a bulk frame that replaces the chat
+ * content on the client, so live frames offered after it must not overtake it.
+ * A frame offered to sessions of both protocol versions carries a compact payload for the sessions
+ * speaking the compact protocol.
+ */
+@Getter
+public class OutboundFrame {
+
+    private final TextMessage message;
+
+    private final int length;
+
+    private final TextMessage compactMessage;
+
+    private final int compactLength;
+
+    private final boolean bulk;
+
+    private final boolean barrier;
+
+    private OutboundFrame(String payload, String compactPayload, boolean bulk, boolean barrier) {
+        this.message = new TextMessage(payload);
+        this.length = payload.getBytes(StandardCharsets.UTF_8).length;
+        this.compactMessage = (compactPayload != null) ? new TextMessage(compactPayload) : message;
+        this.compactLength = (compactPayload != null) ? compactPayload.getBytes(StandardCharsets.UTF_8).length : length;
+        this.bulk = bulk;
+        this.barrier = barrier;
+    }
+
+    private OutboundFrame(String payload, boolean bulk, boolean barrier) {
+        this(payload, null, bulk, barrier);
+    }
+
+    public TextMessage getMessage(boolean compact) {
+        return compact ? compactMessage : message;
+    }
+
+    public int getLength(boolean compact) {
+        return compact ? compactLength : length;
+    }
+
+    public static OutboundFrame live(String payload) {
+        return new OutboundFrame(payload, false, false);
+    }
+
+    public static OutboundFrame live(String payload, String compactPayload) {
+        return new OutboundFrame(payload, compactPayload, false, false);
+    }
+
+    public static OutboundFrame bulk(String payload) {
+        return new OutboundFrame(payload, true, false);
+    }
+
+    public static OutboundFrame barrier(String payload) {
+        return new OutboundFrame(payload, true, true);
+    }
+}
@@ -0,0 +1,253 @@
+package simplechat.util;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import javax.websocket.RemoteEndpoint;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bounded, non-blocking send queue of one web socket session. Producers only enqueue, a single
+ * drain task at a time hands frames to the asynchronous remote endpoint of the session, on the sender
+ * pool of {@link OutboundQueues}. A send that fails or does not complete within outboundSendTimeoutMillis
+ * evicts the session.
+ * Queues of coalescing sessions start draining a short window after the first frame and write the
+ * frames queued by then as one "batch" frame of at most outboundCoalesceMaxBytes: "batch" and then
+ * each frame as its length in chars, a new line and the frame itself.
+ */
+public class OutboundQueue {
+
+    private final WebSocketSession webSocketSession;
+    private final OutboundQueues owner;
+    private final boolean compact;
+    private final boolean coalesce;
+    private final RemoteEndpoint.Async remote;
+
+    private final Deque<Entry> live = new ArrayDeque<>();
+    private final Deque<Entry> bulk = new ArrayDeque<>();
+    private final Deque<Long> barriers = new ArrayDeque<>();
+    private long sequence;
+    private int frames;
+    private long bytes;
+    private long dropped;
+    private long overLimitSince;
+    private boolean draining;
+    private boolean closed;
+
+    OutboundQueue(WebSocketSession webSocketSession, OutboundQueues owner, boolean compact) {
+        this.webSocketSession = webSocketSession;
+        this.owner = owner;
+        this.compact = compact;
+        // only clients of the compact protocol understand batch frames
+        this.coalesce = compact && (owner.getCoalesceMaxBytes() > 0);
+        if (webSocketSession instanceof NativeWebSocketSession) {
+            javax.websocket.Session nativeSession = ((NativeWebSocketSession) webSocketSession).getNativeSession(javax.websocket.Session.class);
+            remote = (nativeSession != null) ? nativeSession.getAsyncRemote() : null;
+        } else {
+            remote = null;
+        }
+        if (remote != null) {
+            remote.setSendTimeout(owner.getSendTimeout());
+        }
+    }
+
+    public WebSocketSession getWebSocketSession() {
+        return webSocketSession;
+    }
+
+    /**
+     * Enqueues a frame, returns false if it was dropped because the session is closed or over its limits.
+     */
+    public boolean offer(OutboundFrame frame) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if ((frames + 1 > owner.getMaxFrames()) || (bytes + frame.getLength(compact) > owner.getMaxBytes())) {
+                dropped++;
+                if (overLimitSince == 0) {
+                    overLimitSince = System.currentTimeMillis();
+                    owner.getLogger().warn("Web socket session " + webSocketSession.getId() + " is over its limits, dropping frames");
+                }
+                owner.frameDropped(frame.isBulk());
+                return false;
+            }
+            Entry entry = new Entry(++sequence, frame);
+            if (frame.isBulk()) {
+                bulk.addLast(entry);
+                if (frame.isBarrier()) {
+                    barriers.addLast(entry.seq);
+                }
+            } else {
+                live.addLast(entry);
+            }
+            frames++;
+            bytes += frame.getLength(compact);
+            if (draining) {
+                return true;
+            }
+            draining = true;
+        }
+        owner.schedule(this, coalesce);
+        return true;
+    }
+
+    /**
+     * Starts sending the next frames. Sends are asynchronous, so a stalled peer never holds a sender thread:
+     * the completion of a send schedules the next drain, a failed or timed out send evicts the session.
+     */
+    void drain() {
+        List<Entry> entries = new ArrayList<>();
+        long length = 0;
+        synchronized (this) {
+            Entry entry = next();
+            if (entry == null) {
+                draining = false;
+                return;
+            }
+            entries.add(entry);
+            length += entry.frame.getLength(compact);
+            while (coalesce) {
+                Entry following = nextLane().peekFirst();
+                if ((following == null) || (length + following.frame.getLength(compact) > owner.getCoalesceMaxBytes())) {
+                    break;
+                }
+                entries.add(next());
+                length += following.frame.getLength(compact);
+            }
+        }
+        TextMessage message = (entries.size() == 1) ? entries.get(0).frame.getMessage(compact) : batch(entries);
+        long sent = length;
+        if (!webSocketSession.isOpen()) {
+            sent(entries.size(), sent, null);
+            return;
+        }
+        if (remote == null) {
+            // not a JSR-356 session, fall back to a blocking send
+            Throwable failure = null;
+            try {
+                webSocketSession.sendMessage(message);
+            } catch (IOException | IllegalStateException e) {
+                failure = e;
+            }
+            sent(entries.size(), sent, failure);
+            return;
+        }
+        try {
+            remote.sendText(message.getPayload(), result -> sent(entries.size(), sent, result.isOK() ? null : result.getException()));
+        } catch (IllegalStateException e) {
+            sent(entries.size(), sent, e);
+        }
+    }
+
+    private void sent(int count, long length, Throwable failure) {
+        synchronized (this) {
+            frames -= count;
+            bytes -= length;
+            if ((frames < owner.getMaxFrames()) && (bytes < owner.getMaxBytes())) {
+                overLimitSince = 0;
+            }
+        }
+        if (failure != null) {
+            owner.getLogger().debug("Unable to send frame to " + webSocketSession.getId(), failure);
+            owner.sendFailed(this);
+            return;
+        }
+        owner.framesSent(count);
+        owner.schedule(this, false);
+    }
+
+    private TextMessage batch(List<Entry> entries) {
+        StringBuilder sb = new StringBuilder("batch\n");
+        for (Entry entry : entries) {
+            String payload = entry.frame.getMessage(compact).getPayload();
+            sb.append(payload.length()).append('\n').append(payload);
+        }
+        return new TextMessage(sb);
+    }
+
+    private Entry next() {
+        Entry entry = nextLane().pollFirst();
+        if ((entry != null) && entry.frame.isBarrier()) {
+            barriers.pollFirst();
+        }
+        return entry;
+    }
+
+    /**
+     * Live frames go first, except for those offered after the oldest queued barrier.
+     */
+    private Deque<Entry> nextLane() {
+        Entry l = live.peekFirst();
+        Long barrier = barriers.peekFirst();
+        if ((l != null) && ((barrier == null) || (l.seq < barrier))) {
+            return live;
+        }
+        return bulk.isEmpty() ? live : bulk;
+    }
+
+    public synchronized int getQueuedFrames() {
+        return frames;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return bytes;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return dropped;
+    }
+
+    synchronized boolean isOverLimitLongerThan(long budget, long now) {
+        return (overLimitSince != 0) && (now - overLimitSince > budget);
+    }
+
+    /**
+     * Stops accepting frames, already queued frames are still delivered.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        owner.release(this);
+    }
+
+    void evict() {
+        synchronized (this) {
+            closed = true;
+            discard(live);
+            discard(bulk);
+            barriers.clear();
+        }
+        try {
+            webSocketSession.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException e) {
+            owner.getLogger().debug("Unable to close " + webSocketSession.getId(), e);
+        }
+    }
+
+    private void discard(Deque<Entry> lane) {
+        for (Entry entry : lane) {
+            frames--;
+            bytes -= entry.frame.getLength(compact);
+        }
+        lane.clear();
+    }
+
+    private static class Entry {
+
+        private final long seq;
+        private final OutboundFrame frame;
+
+        private Entry(long seq, OutboundFrame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package simplechat.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the {@link OutboundQueue} of each web socket session, owns the pool that drains them and
+ * evicts sessions whose sends fail or time out, or which stay over their limits for longer than the
+ * configured budget. Evicted sessions are closed on a separate pool, so the senders never wait for them.
+ * Queue depth, drops (dropped live frames such as messages also on their own) and evictions are published
+ * as "simplechat.outbound.*" metrics, as well as the frames sent and the socket writes they took, which
+ * differ by the frames coalesced into batches.
+ */
+@Component
+public class OutboundQueues {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Getter
+    @Value("${outboundMaxFrames}")
+    private int maxFrames;
+
+    @Getter
+    @Value("${outboundMaxBytes}")
+    private long maxBytes;
+
+    @Value("${outboundOverLimitBudgetMillis}")
+    private long overLimitBudget;
+
+    @Value("${outboundSenderThreads}")
+    private int senderThreads;
+
+    @Getter
+    @Value("${outboundSendTimeoutMillis}")
+    private long sendTimeout;
+
+    @Value("${outboundCoalesceMillis}")
+    private long coalesceMillis;
+
+    @Getter
+    @Value("${outboundCoalesceMaxBytes}")
+    private long coalesceMaxBytes;
+
+    @Getter
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Set<OutboundQueue> queues = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService executor;
+    private ExecutorService closer;
+    private Counter sentFrames;
+    private Counter writes;
+    private Counter droppedFrames;
+    private Counter droppedLiveFrames;
+    private Counter evictedSessions;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(senderThreads, r -> {
+            Thread t = new Thread(r, "ws-sender-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // closing sends a close frame, which may block on the peers being evicted
+        AtomicInteger closerNumber = new AtomicInteger();
+        closer = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ws-closer-" + closerNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        sentFrames = meterRegistry.counter("simplechat.outbound.frames");
+        writes = meterRegistry.counter("simplechat.outbound.writes");
+        droppedFrames = meterRegistry.counter("simplechat.outbound.dropped.frames");
+        droppedLiveFrames = meterRegistry.counter("simplechat.outbound.dropped.live.frames");
+        evictedSessions = meterRegistry.counter("simplechat.outbound.evicted.sessions");
+        meterRegistry.gauge("simplechat.outbound.sessions", queues, Set::size);
+        meterRegistry.gauge("simplechat.outbound.queued.frames", this, OutboundQueues::getQueuedFrames);
+        meterRegistry.gauge("simplechat.outbound.queued.bytes", this, OutboundQueues::getQueuedBytes);
+        meterRegistry.gauge("simplechat.outbound.max.queued.frames", this, OutboundQueues::getMaxQueuedFrames);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        closer.shutdownNow();
+    }
+
+    /**
+     * Opens the queue of a session, compact selects the compact payloads of frames that have one.
+     */
+    public OutboundQueue open(WebSocketSession webSocketSession, boolean compact) {
+        OutboundQueue queue = new OutboundQueue(webSocketSession, this, compact);
+        queues.add(queue);
+        return queue;
+    }
+
+    void release(OutboundQueue queue) {
+        queues.remove(queue);
+    }
+
+    /**
+     * Schedules draining a queue, delayed by the coalescing window so frames offered right after each other
+     * can be sent together.
+     */
+    void schedule(OutboundQueue queue, boolean delayed) {
+        if (delayed && (coalesceMillis > 0)) {
+            executor.schedule(queue::drain, coalesceMillis, TimeUnit.MILLISECONDS);
+        } else {
+            executor.execute(queue::drain);
+        }
+    }
+
+    void sendFailed(OutboundQueue queue) {
+        if (queues.contains(queue)) {
+            logger.warn("Evicting web socket session " + queue.getWebSocketSession().getId() + " after a failed send");
+            evict(queue);
+        }
+    }
+
+    private void evict(OutboundQueue queue) {
+        if (queues.remove(queue)) {
+            evictedSessions.increment();
+            closer.execute(queue::evict);
+        }
+    }
+
+    void framesSent(int frames) {
+        sentFrames.increment(frames);
+        writes.increment();
+    }
+
+    void frameDropped(boolean bulk) {
+        droppedFrames.increment();
+        if (!bulk) {
+            droppedLiveFrames.increment();
+        }
+    }
+
+    @Scheduled(fixedRate = 1000, initialDelay = 1000)
+    public void evictSlowConsumers() {
+        long now = System.currentTimeMillis();
+        for (OutboundQueue queue : queues) {
+            if (queue.isOverLimitLongerThan(overLimitBudget, now)) {
+                logger.warn("Evicting slow web socket session " + queue.getWebSocketSession().getId());
+                evict(queue);
+            }
+        }
+    }
+
+    public double getQueuedFrames() {
+        return queues.stream().mapToLong(OutboundQueue::getQueuedFrames).sum();
+    }
+
+    public double getQueuedBytes() {
+        return queues.stream().mapToLong(OutboundQueue::getQueuedBytes).sum();
+    }
+
+    public double getMaxQueuedFrames() {
+        return queues.stream().mapToLong(OutboundQueue::getQueuedFrames).max().orElse(0);
+    }
+}
@@ -0,0 +1,161 @@
+package simplechat.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Least recently used cache of preview images, bounded by previewCacheBytes in total. Keys start with the id of
+ * the file info the preview belongs to, previews never change for an id so entries are only dropped by
+ * eviction or {@link #evict(UUID)}. With previewCacheDirect the data lives outside of the heap.
+ */
+@Component
+public class PreviewCache {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${previewCacheBytes}")
+    private long capacity;
+
+    @Value("${previewCacheDirect}")
+    private boolean direct;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long size = 0;
+    private Counter hits;
+    private Counter misses;
+
+    public static class Entry {
+
+        private final ByteBuffer data;
+
+        private final String etag;
+
+        private final String contentType;
+
+        private final long lastModified;
+
+        private Entry(ByteBuffer data, String etag, String contentType, long lastModified) {
+            this.data = data;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        hits = meterRegistry.counter("simplechat.previews.cache.hits");
+        misses = meterRegistry.counter("simplechat.previews.cache.misses");
+        meterRegistry.gauge("simplechat.previews.cache.bytes", this, x -> x.size);
+    }
+
+    public Entry get(String key) {
+        Entry entry;
+        try {
+            lock.lock();
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        (entry != null ? hits : misses).increment();
+        return entry;
+    }
+
+    /**
+     * Loads a preview file into the cache, files larger than an eighth of the capacity are not cached.
+     */
+    public void put(String key, File file, String etag, String contentType) throws IOException {
+        long length = file.length();
+        if ((length == 0) || (length > capacity / 8)) {
+            return;
+        }
+        ByteBuffer data = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int n = 0;
+            while (data.hasRemaining() && (n >= 0)) {
+                n = channel.read(data);
+            }
+        }
+        if (data.hasRemaining()) {
+            return;
+        }
+        data.flip();
+        Entry entry = new Entry(data, etag, contentType, file.lastModified() / 1000 * 1000);
+        try {
+            lock.lock();
+            Entry old = entries.put(key, entry);
+            size += length - ((old != null) ? old.data.limit() : 0);
+            Iterator<Entry> it = entries.values().iterator();
+            while ((size > capacity) && it.hasNext()) {
+                size -= it.next().data.limit();
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the previews of a deleted file info.
+     */
+    public void evict(UUID fileInfoId) {
+        String prefix = fileInfoId + "/";
+        try {
+            lock.lock();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().startsWith(prefix)) {
+                    size -= e.getValue().data.limit();
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a cached preview with the same validators and caching headers as {@link FileTransfer}. Range
+     * requests are answered with the whole preview.
+     */
+    public void send(Entry entry, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader("ETag", entry.etag);
+        response.setDateHeader("Last-Modified", entry.lastModified);
+        response.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if ((ifNoneMatch != null) && (ifNoneMatch.contains(entry.etag) || ifNoneMatch.trim().equals("*"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        ByteBuffer data = entry.data.duplicate();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(entry.contentType);
+        response.setContentLength(data.remaining());
+        WritableByteChannel channel = Channels.newChannel(response.getOutputStream());
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
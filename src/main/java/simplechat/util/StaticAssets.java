@@ -0,0 +1,233 @@
+package simplechat.util;
+
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * In-memory registry of the files under res/img, res/css, res/js and res/misc. Each asset is loaded
+ * once with a content hash ETag and, for text formats, a gzip variant prepared ahead of time. Requests
+ * are answered from one map lookup, conditional requests with 304. A watch service reloads changed files.
+ * URLs produced by {@link #versionedUri(String)} carry the hash and are cached by browsers for a year,
+ * plain URLs for staticAssetMaxAge seconds.
+ */
+@Component
+public class StaticAssets {
+
+    private static final String directories[] = {
+            SimpleChatApplication.imageResourcePath,
+            SimpleChatApplication.styleResourcePath,
+            SimpleChatApplication.scriptResourcePath,
+            SimpleChatApplication.miscResourcePath
+    };
+    private static final Map<String, String> contentTypes = new HashMap<>();
+
+    static {
+        contentTypes.put("svg", "image/svg+xml");
+        contentTypes.put("css", "text/css");
+        contentTypes.put("json", "application/json");
+        contentTypes.put("js", "text/javascript");
+        contentTypes.put("png", "image/png");
+        contentTypes.put("ico", "image/x-icon");
+    }
+
+    @Value("${staticAssetMaxAge}")
+    private long maxAge;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+    private WatchService watchService;
+
+    @Getter
+    public static class Asset {
+
+        private final String contentType;
+
+        private final byte data[];
+
+        private final byte gzipData[];
+
+        private final String version;
+
+        private final long lastModified;
+
+        private Asset(String contentType, byte data[], byte gzipData[], String version, long lastModified) {
+            this.contentType = contentType;
+            this.data = data;
+            this.gzipData = gzipData;
+            this.version = version;
+            this.lastModified = lastModified;
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        for (String directory : directories) {
+            for (String filename : Objects.requireNonNull(new File(directory).list())) {
+                load(Paths.get(directory, filename));
+            }
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (String directory : directories) {
+                Paths.get(directory).register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to watch static assets, changes will not be reloaded", e);
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "static-assets-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    continue;
+                }
+                Path file = directory.resolve((Path) event.context());
+                try {
+                    if (event.kind() == ENTRY_DELETE) {
+                        assets.remove("/" + file.getFileName());
+                    } else {
+                        load(file);
+                    }
+                } catch (IOException e) {
+                    logger.warn("Unable to reload " + file, e);
+                }
+            }
+            if (!key.reset()) {
+                return;
+            }
+        }
+    }
+
+    private void load(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        String name = file.getFileName().toString();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        String contentType = contentTypes.getOrDefault(extension, "application/octet-stream");
+        byte data[] = Files.readAllBytes(file);
+        byte gzipData[] = null;
+        if (contentType.startsWith("text/") || contentType.endsWith("json") || contentType.endsWith("xml")) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(os)) {
+                gzip.write(data);
+            }
+            if (os.size() < data.length) {
+                gzipData = os.toByteArray();
+            }
+        }
+        String version;
+        try {
+            version = hex(MessageDigest.getInstance("SHA-256").digest(data)).substring(0, 20);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long lastModified = Files.getLastModifiedTime(file).toMillis() / 1000 * 1000;
+        assets.put("/" + name, new Asset(contentType, data, gzipData, version, lastModified));
+    }
+
+    private static String hex(byte b[]) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public Asset get(String uri) {
+        return assets.get(uri);
+    }
+
+    /**
+     * Returns the uri of an asset with its version appended, or the plain uri if there is no such asset.
+     */
+    public String versionedUri(String name) {
+        Asset asset = assets.get("/" + name);
+        return (asset == null) ? name : (name + "?v=" + asset.getVersion());
+    }
+
+    public void serve(Asset asset, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzip = (asset.getGzipData() != null) && (acceptEncoding != null) && acceptEncoding.contains("gzip");
+        String etag = "\"" + asset.getVersion() + (gzip ? "-gz\"" : "\"");
+        if (asset.getVersion().equals(request.getParameter("v"))) {
+            response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        } else {
+            response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        }
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", asset.getLastModified());
+        if (asset.getGzipData() != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (matches(request.getHeader("If-None-Match"), asset.getVersion())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte data[] = gzip ? asset.getGzipData() : asset.getData();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(asset.getContentType());
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(data.length);
+        response.getOutputStream().write(data);
+    }
+
+    private static boolean matches(String ifNoneMatch, String version) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals("\"" + version + "\"") || tag.equals("\"" + version + "-gz\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,44 @@
+package simplechat.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks addressed by key (usually a username). Work for the same key is
+ * serialized, work for different keys runs in parallel unless the keys share a stripe.
+ */
+@Component
+public class StripedLock {
+
+    @Value("${websocketLockStripes}")
+    private int stripeCount;
+
+    private ReentrantLock stripes[];
+
+    /**
+     * Returns a separate set of locks, for keys that must not share stripes with the users.
+     */
+    public static StripedLock of(int stripeCount) {
+        StripedLock lock = new StripedLock();
+        lock.stripeCount = stripeCount;
+        lock.init();
+        return lock;
+    }
+
+    @PostConstruct
+    public void init() {
+        stripes = new ReentrantLock[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock get(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+}
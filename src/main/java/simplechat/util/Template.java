@@ -0,0 +1,45 @@
+package simplechat.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A page parsed once into literal segments and parameter slots, includes are already inlined.
+ * Instances are immutable and can be rendered by any number of threads.
+ */
+public class Template {
+
+    private final String literals[];
+    private final String slots[];
+    private final boolean assetSlots[];
+    private final int literalLength;
+
+    Template(List<String> literals, List<String> slots) {
+        this.literals = literals.toArray(new String[0]);
+        this.slots = new String[slots.size()];
+        this.assetSlots = new boolean[slots.size()];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.assetSlots[i] = slots.get(i).charAt(0) == '@';
+            this.slots[i] = slots.get(i).substring(1);
+        }
+        int length = 0;
+        for (String literal : this.literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Appends the page to sb, literals[i] is followed by the value of slots[i], which is a parameter or,
+     * for asset slots, the uri returned by assetUris.
+     */
+    public void render(StringBuilder sb, Map<String, String> params, Function<String, String> assetUris) {
+        sb.ensureCapacity(sb.length() + literalLength);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(literals[i]);
+            sb.append(assetSlots[i] ? assetUris.apply(slots[i]) : params.get(slots[i]));
+        }
+        sb.append(literals[slots.length]);
+    }
+}
@@ -0,0 +1,140 @@
+package simplechat.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Compiles the pages of {@link SimpleChatApplication#pageResourcePath} into {@link Template}s on first use.
+ * A "&lt;% $name %&gt;" tag is a parameter slot, "&lt;% @file %&gt;" is the versioned uri of a static asset
+ * (see {@link StaticAssets}) and "&lt;% #file %&gt;" includes another page. Compiled
+ * templates are kept until a file of the directory changes, which is detected by a watch service instead
+ * of checking modification times on every render.
+ */
+@Component
+public class Templates {
+
+    @Autowired
+    private StaticAssets staticAssets;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Map<String, Template> compiled = new ConcurrentHashMap<>();
+    private final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+    private volatile long generation;
+    private WatchService watchService;
+
+    @PostConstruct
+    public void init() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Paths.get(SimpleChatApplication.pageResourcePath).register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.warn("Unable to watch " + SimpleChatApplication.pageResourcePath + ", templates will not be reloaded", e);
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "template-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            // includes are inlined, so any change may affect any template
+            generation++;
+            compiled.clear();
+            if (!key.reset()) {
+                return;
+            }
+        }
+    }
+
+    public String render(String fileName, Map<String, String> params) throws IOException {
+        Template template = get(fileName);
+        StringBuilder sb = builders.get();
+        sb.setLength(0);
+        template.render(sb, params, staticAssets::versionedUri);
+        String result = sb.toString();
+        if (sb.capacity() > 65536) {
+            builders.remove();
+        }
+        return result;
+    }
+
+    public Template get(String fileName) throws IOException {
+        Template template = compiled.get(fileName);
+        if (template == null) {
+            long compiledGeneration = generation;
+            List<String> literals = new ArrayList<>();
+            List<String> slots = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            compile(fileName, literals, slots, literal);
+            literals.add(literal.toString());
+            template = new Template(literals, slots);
+            compiled.put(fileName, template);
+            if (compiledGeneration != generation) {
+                // the file may have changed while it was compiled
+                compiled.remove(fileName, template);
+            }
+        }
+        return template;
+    }
+
+    private void compile(String fileName, List<String> literals, List<String> slots, StringBuilder literal) throws IOException {
+        String page = new String(Files.readAllBytes(Paths.get(SimpleChatApplication.pageResourcePath + fileName)), "UTF-8");
+        int from = 0;
+        while (true) {
+            int si = page.indexOf("<%", from);
+            if (si < 0) {
+                break;
+            }
+            int ei = page.indexOf("%>", si);
+            if (ei < 0) {
+                throw new IOException("Unterminated tag in " + fileName);
+            }
+            literal.append(page, from, si);
+            String cmd = page.substring(si + 2, ei).trim();
+            switch (cmd.isEmpty() ? ' ' : cmd.charAt(0)) {
+                case '$':
+                case '@':
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    slots.add(cmd);
+                    break;
+                case '#':
+                    compile("/" + cmd.substring(1), literals, slots, literal);
+                    break;
+                default:
+                    throw new IOException("Invalid identifier");
+            }
+            from = ei + 2;
+        }
+        literal.append(page, from, page.length());
+    }
+}
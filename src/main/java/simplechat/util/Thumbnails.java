@@ -0,0 +1,224 @@
+package simplechat.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes preview images on a bounded worker pool. Images are decoded once, subsampled by the reader to about
+ * the largest requested width, so a huge photo never exists on the heap at full resolution. The decoded
+ * images of all workers together may take at most thumbnailDecodeMemoryMb until their previews are written,
+ * larger decodes wait. They are
+ * then scaled down in steps of at most one half with bilinear interpolation (much faster than
+ * {@link Image#getScaledInstance} with SCALE_SMOOTH at similar quality), from the largest width to the smallest.
+ * Queue depth and per-image time are published as "simplechat.thumbnails.*" metrics.
+ */
+@Component
+public class Thumbnails {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${thumbnailThreads}")
+    private int threads;
+
+    @Value("${thumbnailQueueCapacity}")
+    private int queueCapacity;
+
+    @Value("${thumbnailDecodeMemoryMb}")
+    private int decodeMemoryMb;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor executor;
+    private Semaphore decodeMemory;
+    private Timer timer;
+    private Counter failures;
+    private Counter rejections;
+
+    public interface Callback {
+
+        /**
+         * Called on the worker thread, success is false if the source could not be decoded or written.
+         */
+        void done(boolean success);
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        decodeMemory = new Semaphore(decodeMemoryMb, true);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "thumbnail-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        timer = meterRegistry.timer("simplechat.thumbnails.time");
+        failures = meterRegistry.counter("simplechat.thumbnails.failures");
+        rejections = meterRegistry.counter("simplechat.thumbnails.rejections");
+        meterRegistry.gauge("simplechat.thumbnails.queue", executor, x -> x.getQueue().size());
+        meterRegistry.gauge("simplechat.thumbnails.active", executor, ThreadPoolExecutor::getActiveCount);
+        meterRegistry.gauge("simplechat.thumbnails.decode.memory", decodeMemory, x -> decodeMemoryMb - x.availablePermits());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues making the previews of source, targets maps widths to output files. Returns false if a job with
+     * the same key is already pending or the queue is full.
+     */
+    public boolean submit(String key, File source, String format, Map<Integer, File> targets, Callback callback) {
+        if (!pending.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                boolean success = false;
+                try {
+                    success = timer.recordCallable(() -> make(source, format, targets));
+                } catch (Exception e) {
+                    logger.warn("Unable to make previews of " + source, e);
+                } finally {
+                    pending.remove(key);
+                }
+                if (!success) {
+                    failures.increment();
+                }
+                callback.done(success);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            rejections.increment();
+            logger.warn("Thumbnail queue is full, skipping " + source);
+            return false;
+        }
+    }
+
+    public boolean isPending(String key) {
+        return pending.contains(key);
+    }
+
+    private static class Decoded {
+
+        private final BufferedImage image;
+
+        // decode memory taken until the previews are written
+        private final int permits;
+
+        private Decoded(BufferedImage image, int permits) {
+            this.image = image;
+            this.permits = permits;
+        }
+    }
+
+    private boolean make(File source, String format, Map<Integer, File> targets) throws IOException, InterruptedException {
+        List<Integer> widths = new ArrayList<>(targets.keySet());
+        widths.sort(Collections.reverseOrder());
+        Decoded decoded = decode(source, widths.get(0));
+        if (decoded == null) {
+            return false;
+        }
+        try {
+            BufferedImage image = decoded.image;
+            for (int width : widths) {
+                image = scale(image, Math.min(width, image.getWidth()));
+                if (!ImageIO.write(image, format, targets.get(width))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            decodeMemory.release(decoded.permits);
+        }
+    }
+
+    /**
+     * Decodes the image reading only every n-th pixel of every n-th row, with n chosen so that the result is
+     * still at least width pixels wide. Returns null if no reader understands the source, otherwise the
+     * caller releases the permits of the result once it is done with the image.
+     */
+    private Decoded decode(File source, int width) throws IOException, InterruptedException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                int period = Math.max(1, sourceWidth / width);
+                long pixels = (long) ((sourceWidth + period - 1) / period) * ((sourceHeight + period - 1) / period);
+                // 4 bytes per pixel for the decoded image and 1 for the first scaling step (a quarter of the
+                // pixels), rounded up to whole megabytes
+                int permits = (int) Math.min(decodeMemoryMb, Math.max(1, (pixels * 5 + (1 << 20) - 1) >> 20));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(period, period, 0, 0);
+                decodeMemory.acquire(permits);
+                boolean decoded = false;
+                try {
+                    Decoded result = new Decoded(reader.read(0, param), permits);
+                    decoded = true;
+                    return result;
+                } finally {
+                    if (!decoded) {
+                        decodeMemory.release(permits);
+                    }
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales to the given width keeping the aspect ratio, the result is always an opaque RGB image.
+     */
+    public static BufferedImage scale(BufferedImage image, int width) {
+        int height = Math.max(1, (int) ((double) image.getHeight() / image.getWidth() * width));
+        BufferedImage current = image;
+        do {
+            int w = Math.max(width, current.getWidth() / 2);
+            int h = (w == width) ? height : Math.max(height, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (current.getWidth() != width);
+        return current;
+    }
+}
@@ -0,0 +1,62 @@
+package simplechat.util;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import simplechat.model.BaseModel;
+
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Monotonic, time sortable ids. A sequence number is the current time in milliseconds shifted left by 16 bits
+ * plus a counter, so up to 65536 ids per millisecond are strictly increasing within this process, also when
+ * the clock goes back. As a Hibernate generator it makes UUIDs whose high half is such a sequence number and
+ * whose low half is random, so new rows are appended to the end of primary key indexes instead of splitting
+ * pages at random places. Only the variant bits are set; the version nibble is part of the sequence number,
+ * so ids are ordered like the sequence numbers they carry.
+ */
+public class TimeOrderedIds implements IdentifierGenerator {
+
+    private static final int counterBits = 16;
+    private static long last = 0;
+
+    public static synchronized long next() {
+        long seq = System.currentTimeMillis() << counterBits;
+        // same millisecond (or a clock going back): continue counting, borrowing from the next milliseconds
+        last = Math.max(seq, last + 1);
+        return last;
+    }
+
+    /**
+     * Returns the sequence number a legacy row created at the given time would have got, previous is the one
+     * given to the row before it (rows in date order). Like {@link #next()}, rows of the same millisecond
+     * count up from there and borrow from the next milliseconds once the counter is used up.
+     */
+    public static long of(long millis, long previous) {
+        return Math.max(millis << counterBits, previous + 1);
+    }
+
+    /**
+     * Returns the largest sequence number of the given millisecond, so rows of that millisecond or earlier are
+     * at or below it (converts dates to sequence numbers for comparisons).
+     */
+    public static long lastOf(long millis) {
+        return ((millis + 1) << counterBits) - 1;
+    }
+
+    public static UUID uuid(long seq) {
+        // variant bits of RFC 4122, the rest is random
+        long low = (ThreadLocalRandom.current().nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(seq, low);
+    }
+
+    /**
+     * Keeps ids assigned before saving (see {@link simplechat.repository.MessageWriter}).
+     */
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) {
+        UUID id = ((BaseModel) object).getId();
+        return (id != null) ? id : uuid(next());
+    }
+}
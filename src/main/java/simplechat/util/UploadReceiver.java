@@ -0,0 +1,125 @@
+package simplechat.util;
+
+import lombok.Getter;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import simplechat.SimpleChatApplication;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * Parses multipart uploads while they arrive and writes the file part straight to its final place in
+ * {@link SimpleChatApplication#uploadPath}, so nothing is buffered in a temp file by a multipart resolver.
+ * Length and SHA-256 digest are computed during the write.
+ */
+@Component
+public class UploadReceiver {
+
+    private static final int bufferSize = 64 * 1024;
+
+    @Autowired
+    private ByteUtils byteUtils;
+
+    @Value("${uploadMaxBytes}")
+    private long maxBytes;
+
+    @Getter
+    public static class Upload {
+
+        private final String name;
+
+        private final File file;
+
+        private final long length;
+
+        private final String digest;
+
+        private Upload(String name, File file, long length, String digest) {
+            this.name = name;
+            this.file = file;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Stores the first file part named fieldName of a multipart request.
+     */
+    public Upload receive(HttpServletRequest request, String fieldName) throws IOException {
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            throw new IOException("Not a multipart request");
+        }
+        ServletFileUpload upload = new ServletFileUpload();
+        upload.setFileSizeMax(maxBytes);
+        try {
+            FileItemIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (!item.isFormField() && fieldName.equals(item.getFieldName())) {
+                    // some browsers send the full client side path
+                    String name = item.getName();
+                    if (name != null) {
+                        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+                    }
+                    if ((name == null) || name.isEmpty()) {
+                        throw new IOException("Missing file name: " + fieldName);
+                    }
+                    try (InputStream is = item.openStream()) {
+                        return store(name, is);
+                    }
+                }
+            }
+        } catch (FileUploadException e) {
+            throw new IOException(e);
+        }
+        throw new IOException("Missing file part: " + fieldName);
+    }
+
+    private Upload store(String name, InputStream is) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File file = new File(SimpleChatApplication.uploadPath + "/" + UUID.randomUUID());
+        long length = 0;
+        boolean success = false;
+        try (ReadableByteChannel in = Channels.newChannel(is);
+             FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                length += buffer.limit();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        return new Upload(name, file, length, byteUtils.toHex(digest.digest(), ""));
+    }
+}
@@ -0,0 +1,79 @@
+package simplechat.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import simplechat.SimpleChatApplication;
+import simplechat.controller.BroadcastFanout;
+import simplechat.model.Session;
+import simplechat.model.User;
+import simplechat.repository.UserDirectory;
+import simplechat.util.OutboundFrame;
+import simplechat.util.OutboundQueues;
+import simplechat.util.StripedLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of delivering one broadcast message against the number of connected members, all of them
+ * looking at the broadcast channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastFanoutBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    private int members;
+
+    private BroadcastFanout fanout;
+    private OutboundQueues outboundQueues;
+    private List<Session> sessions;
+    private OutboundFrame frame;
+
+    @Setup
+    public void setup() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StripedLock userLocks = Components.set(new StripedLock(), "stripeCount", 64);
+        userLocks.init();
+        outboundQueues = new OutboundQueues();
+        Components.set(outboundQueues, "meterRegistry", meterRegistry);
+        Components.set(outboundQueues, "maxFrames", Integer.MAX_VALUE);
+        Components.set(outboundQueues, "maxBytes", Long.MAX_VALUE);
+        Components.set(outboundQueues, "senderThreads", 4);
+        outboundQueues.init();
+        fanout = new BroadcastFanout();
+        Components.set(fanout, "userLocks", userLocks);
+        Components.set(fanout, "userDirectory", new UserDirectory());
+        Components.set(fanout, "meterRegistry", meterRegistry);
+        Components.set(fanout, "fanoutThreads", 4);
+        Components.set(fanout, "fanoutChunksize", 256);
+        fanout.init();
+        sessions = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            User user = new User();
+            user.setUsername("user" + i);
+            Session session = new Session("session" + i, user, System.currentTimeMillis());
+            session.setOtherSideUsername(SimpleChatApplication.broadcastUsername);
+            session.setOutboundQueue(outboundQueues.open(new NullWebSocketSession(), false));
+            sessions.add(session);
+        }
+        frame = OutboundFrame.live("msg\n<div class=\"ChatMessage\">hello</div>");
+    }
+
+    @TearDown
+    public void tearDown() {
+        fanout.shutdown();
+        outboundQueues.shutdown();
+    }
+
+    @Benchmark
+    public void deliver() {
+        fanout.deliver("sender", frame, null, sessions, session -> {
+        });
+    }
+}
@@ -0,0 +1,95 @@
+package simplechat.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.web.socket.WebSocketMessage;
+import simplechat.util.OutboundFrame;
+import simplechat.util.OutboundQueue;
+import simplechat.util.OutboundQueues;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time to deliver a burst of small live frames to one compact session, as change-page or a run of
+ * "persisted" acks produce, with coalescing off (outboundCoalesceMaxBytes=0) and on (the defaults of
+ * application.properties). Each socket write costs writeCost tokens of CPU. The "frames" and "writes"
+ * counters give the frames per socket write, the same ratio as simplechat.outbound.frames and
+ * simplechat.outbound.writes on a running server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoalescingBenchmark {
+
+    private static final int burst = 20;
+
+    @Param({"0", "65536"})
+    private long coalesceMaxBytes;
+
+    @Param({"0", "5000"})
+    private long writeCost;
+
+    private OutboundQueues outboundQueues;
+    private OutboundQueue queue;
+    private final AtomicLong writes = new AtomicLong();
+    private OutboundFrame frame;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+
+        public long frames;
+        public long writes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+            writes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        outboundQueues = new OutboundQueues();
+        Components.set(outboundQueues, "meterRegistry", new SimpleMeterRegistry());
+        Components.set(outboundQueues, "maxFrames", 1000);
+        Components.set(outboundQueues, "maxBytes", 8388608L);
+        Components.set(outboundQueues, "senderThreads", 4);
+        Components.set(outboundQueues, "sendTimeout", 10000L);
+        Components.set(outboundQueues, "coalesceMillis", 2L);
+        Components.set(outboundQueues, "coalesceMaxBytes", coalesceMaxBytes);
+        outboundQueues.init();
+        queue = outboundQueues.open(new NullWebSocketSession() {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) {
+                Blackhole.consumeCPU(writeCost);
+                writes.incrementAndGet();
+            }
+        }, true);
+        frame = OutboundFrame.live("persisted\n00000000-0000-0000-0000-000000000000");
+    }
+
+    @TearDown
+    public void tearDown() {
+        outboundQueues.shutdown();
+    }
+
+    @Benchmark
+    public void deliver(Counters counters) {
+        long before = writes.get();
+        for (int i = 0; i < burst; i++) {
+            queue.offer(frame);
+        }
+        while (queue.getQueuedFrames() > 0) {
+            LockSupport.parkNanos(1000);
+        }
+        counters.frames += burst;
+        counters.writes += writes.get() - before;
+    }
+}
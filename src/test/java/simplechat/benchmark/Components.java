@@ -0,0 +1,25 @@
+package simplechat.benchmark;
+
+import java.lang.reflect.Field;
+
+/**
+ * Wires components outside of Spring: sets the fields Spring would inject or fill from application.properties.
+ */
+public class Components {
+
+    public static <T> T set(T target, String name, Object value) {
+        for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return target;
+            } catch (NoSuchFieldException e) {
+                // declared by a superclass
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalArgumentException("No field " + name + " in " + target.getClass());
+    }
+}
@@ -0,0 +1,76 @@
+package simplechat.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import simplechat.model.Message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of fetching the newest page of a random conversation against the number of conversations (100
+ * messages each, so 10 thousand to 10 million rows). "indexed" is the query of MessageRepository#fetchMessages
+ * on the (conversation_key, seq) index, "scanned" is the former query on sender and receiver, run against a
+ * table without indexes as the one Hibernate created before. The two larger sizes are file-backed (see
+ * {@link HistoryTables}) and take minutes to fill, and "scanned" reads the whole table on every call there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryPagingBenchmark {
+
+    private static final int messagesPerConversation = 100;
+    private static final int pageSize = 50;
+
+    @Param({"100", "1000", "10000", "100000"})
+    private int conversations;
+
+    private Connection indexedConnection;
+    private Connection scannedConnection;
+    private PreparedStatement indexedQuery;
+    private PreparedStatement scannedQuery;
+
+    @Setup
+    public void setup() throws SQLException {
+        indexedConnection = HistoryTables.create("indexed", conversations, messagesPerConversation, "conversation_key, seq");
+        scannedConnection = HistoryTables.create("scanned", conversations, messagesPerConversation);
+        indexedQuery = indexedConnection.prepareStatement("select * from message m where (m.conversation_key=?) and (m.seq < ?) "
+                + "order by m.seq desc limit ?");
+        scannedQuery = scannedConnection.prepareStatement("select * from message m where (m.date < ?) and "
+                + "((m.sender_username=? and m.receiver_username=?) or "
+                + "(m.sender_username=? and m.receiver_username=?)) "
+                + "order by m.date desc limit ?");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        HistoryTables.close(indexedConnection);
+        HistoryTables.close(scannedConnection);
+    }
+
+    @Benchmark
+    public int indexed() throws SQLException {
+        int c = ThreadLocalRandom.current().nextInt(conversations);
+        indexedQuery.setString(1, Message.conversationKey(HistoryTables.user(c), HistoryTables.user(c + 1)));
+        indexedQuery.setLong(2, Long.MAX_VALUE);
+        indexedQuery.setInt(3, pageSize);
+        return HistoryTables.read(indexedQuery, "seq", new long[1]);
+    }
+
+    @Benchmark
+    public int scanned() throws SQLException {
+        int c = ThreadLocalRandom.current().nextInt(conversations);
+        scannedQuery.setLong(1, Long.MAX_VALUE);
+        scannedQuery.setString(2, HistoryTables.user(c));
+        scannedQuery.setString(3, HistoryTables.user(c + 1));
+        scannedQuery.setString(4, HistoryTables.user(c + 1));
+        scannedQuery.setString(5, HistoryTables.user(c));
+        scannedQuery.setInt(6, pageSize);
+        return HistoryTables.read(scannedQuery, "date", new long[1]);
+    }
+}
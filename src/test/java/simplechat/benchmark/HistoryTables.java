@@ -0,0 +1,102 @@
+package simplechat.benchmark;
+
+import simplechat.model.Message;
+import simplechat.util.TimeOrderedIds;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * H2 databases with a message table shaped like the one Hibernate creates, filled with the history of a
+ * number of two-user conversations. Messages of all conversations are interleaved in time, several per
+ * millisecond, and get random UUID ids like rows written before ids were time-ordered. Tables of more than
+ * {@link #inMemoryRows} rows are kept in a file in the temporary directory, so the heap only bounds the
+ * page cache of H2; {@link #close} deletes it.
+ */
+public class HistoryTables {
+
+    public static final long start = 1500000000000L;
+    public static final int messagesPerMillisecond = 4;
+    public static final long inMemoryRows = 1000000;
+
+    public static Connection create(String name, int conversations, int messagesPerConversation, String... indexes) throws SQLException {
+        String url = ((long) conversations * messagesPerConversation > inMemoryRows)
+                ? "jdbc:h2:file:" + new File(System.getProperty("java.io.tmpdir"), "simplechat-" + name).getAbsolutePath()
+                : "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        Connection connection = DriverManager.getConnection(url, "sa", "");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists message");
+            statement.execute("create table message (id uuid primary key, sender_username varchar(100), "
+                    + "receiver_username varchar(100), conversation_key varchar(201), body varchar(255), "
+                    + "date bigint, seq bigint)");
+            for (int i = 0; i < indexes.length; i++) {
+                statement.execute("create index message_" + i + " on message (" + indexes[i] + ")");
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement("insert into message values (?, ?, ?, ?, ?, ?, ?)")) {
+            long seq = 0;
+            int n = 0;
+            for (int m = 0; m < messagesPerConversation; m++) {
+                for (int c = 0; c < conversations; c++) {
+                    String sender = user(c + (m % 2));
+                    String receiver = user(c + 1 - (m % 2));
+                    long date = start + n / messagesPerMillisecond;
+                    seq = TimeOrderedIds.of(date, seq);
+                    insert.setObject(1, UUID.randomUUID());
+                    insert.setString(2, sender);
+                    insert.setString(3, receiver);
+                    insert.setString(4, Message.conversationKey(sender, receiver));
+                    insert.setString(5, "message " + n);
+                    insert.setLong(6, date);
+                    insert.setLong(7, seq);
+                    insert.addBatch();
+                    if (++n % 1000 == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("analyze");
+        }
+        return connection;
+    }
+
+    /**
+     * Drops the database, deleting its file if it has one, and closes the connection.
+     */
+    public static void close(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop all objects delete files");
+        }
+        connection.close();
+    }
+
+    /**
+     * Conversation c is between user(c) and user(c + 1).
+     */
+    public static String user(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * Runs a page query and returns the number of rows, with the ordering column of the last row in last[0].
+     */
+    public static int read(PreparedStatement query, String orderColumn, long last[]) throws SQLException {
+        int rows = 0;
+        try (ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                last[0] = rs.getLong(orderColumn);
+                rows++;
+            }
+        }
+        return rows;
+    }
+}
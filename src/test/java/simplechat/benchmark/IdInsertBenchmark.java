@@ -0,0 +1,64 @@
+package simplechat.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import simplechat.util.TimeOrderedIds;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert throughput into a table with a UUID primary key, with ids of {@link TimeOrderedIds#uuid} against
+ * {@link UUID#randomUUID()} as before. Each call inserts a batch of rows; the table is created empty for each
+ * iteration and grows to a few million rows, in a file in the temporary directory so that random ids pay for
+ * the pages they split all over the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IdInsertBenchmark {
+
+    private static final int batchSize = 1000;
+
+    @Param({"timeOrdered", "random"})
+    private String ids;
+
+    private Connection connection;
+    private PreparedStatement insert;
+
+    @Setup(Level.Iteration)
+    public void setup() throws SQLException {
+        String path = new File(System.getProperty("java.io.tmpdir"), "simplechat-ids").getAbsolutePath();
+        connection = DriverManager.getConnection("jdbc:h2:file:" + path, "sa", "");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists message");
+            statement.execute("create table message (id uuid primary key, body varchar(255))");
+        }
+        insert = connection.prepareStatement("insert into message values (?, ?)");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws SQLException {
+        HistoryTables.close(connection);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(batchSize)
+    public int[] insert() throws SQLException {
+        boolean timeOrdered = ids.equals("timeOrdered");
+        for (int i = 0; i < batchSize; i++) {
+            insert.setObject(1, timeOrdered ? TimeOrderedIds.uuid(TimeOrderedIds.next()) : UUID.randomUUID());
+            insert.setString(2, "message " + i);
+            insert.addBatch();
+        }
+        return insert.executeBatch();
+    }
+}
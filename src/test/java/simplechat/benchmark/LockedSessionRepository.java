@@ -0,0 +1,56 @@
+package simplechat.benchmark;
+
+import simplechat.model.Session;
+import simplechat.model.User;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The former SessionRepository: a hash map behind a read-write lock, scanned to find the sessions of a user.
+ */
+public class LockedSessionRepository {
+
+    private final Map<String, Session> map = new HashMap<>();
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void save(Session session) {
+        try {
+            lock.writeLock().lock();
+            session.setId(session.getId().toLowerCase());
+            map.put(session.getId(), session);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Optional<Session> findById(String id) {
+        try {
+            lock.readLock().lock();
+            id = id.toLowerCase();
+            if (map.containsKey(id)) {
+                return Optional.of(map.get(id));
+            } else {
+                return Optional.empty();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Session> findByUsername(String username) {
+        try {
+            lock.readLock().lock();
+            List<Session> list = new ArrayList<>();
+            for (String id : map.keySet()) {
+                User user = map.get(id).getUser();
+                if ((user != null) && (user.getUsername().equals(username))) {
+                    list.add(map.get(id));
+                }
+            }
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package simplechat.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import simplechat.model.Message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrolling back through the whole history of a random conversation page by page, chained by sequence
+ * number as MessageRepository#fetchMessages does, against chaining by the date in milliseconds as before.
+ * Both run on a composite index of their column. Several messages share a millisecond, so the date-ordered
+ * walk returns fewer rows: messages at a page boundary with the same date as its last message are skipped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeqPagingBenchmark {
+
+    private static final int conversations = 100;
+    private static final int pageSize = 50;
+
+    @Param({"1000", "10000"})
+    private int messagesPerConversation;
+
+    private Connection connection;
+    private PreparedStatement seqQuery;
+    private PreparedStatement dateQuery;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = HistoryTables.create("paging", conversations, messagesPerConversation,
+                "conversation_key, seq", "conversation_key, date");
+        seqQuery = connection.prepareStatement("select * from message m where (m.conversation_key=?) and (m.seq < ?) "
+                + "order by m.seq desc limit ?");
+        dateQuery = connection.prepareStatement("select * from message m where (m.conversation_key=?) and (m.date < ?) "
+                + "order by m.date desc limit ?");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        HistoryTables.close(connection);
+    }
+
+    @Benchmark
+    public int seqOrdered() throws SQLException {
+        return walk(seqQuery, "seq");
+    }
+
+    @Benchmark
+    public int dateOrdered() throws SQLException {
+        return walk(dateQuery, "date");
+    }
+
+    private int walk(PreparedStatement query, String orderColumn) throws SQLException {
+        int c = ThreadLocalRandom.current().nextInt(conversations);
+        query.setString(1, Message.conversationKey(HistoryTables.user(c), HistoryTables.user(c + 1)));
+        query.setInt(3, pageSize);
+        long last[] = {Long.MAX_VALUE};
+        int total = 0;
+        int rows;
+        do {
+            query.setLong(2, last[0]);
+            rows = HistoryTables.read(query, orderColumn, last);
+            total += rows;
+        } while (rows == pageSize);
+        return total;
+    }
+}
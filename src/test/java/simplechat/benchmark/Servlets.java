@@ -0,0 +1,77 @@
+package simplechat.benchmark;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Servlet requests and responses outside of a container. Requests only answer headers, responses write
+ * their body to a {@link NullOutputStream}, every other method does nothing and returns a default value.
+ */
+public class Servlets {
+
+    public static class NullOutputStream extends ServletOutputStream {
+
+        private long written;
+
+        public long getWritten() {
+            return written;
+        }
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) {
+            written += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+
+    public static HttpServletRequest request(Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(Servlets.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getHeader")) {
+                        return headers.get((String) args[0]);
+                    }
+                    if (method.getName().equals("getDateHeader")) {
+                        return -1L;
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+    }
+
+    public static HttpServletResponse response(NullOutputStream body) {
+        return (HttpServletResponse) Proxy.newProxyInstance(Servlets.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getOutputStream")) {
+                        return body;
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
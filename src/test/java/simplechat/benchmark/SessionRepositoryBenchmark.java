@@ -0,0 +1,82 @@
+package simplechat.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import simplechat.model.Session;
+import simplechat.model.User;
+import simplechat.repository.SessionRepository;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request session work of 8 threads at once against the number of sessions: touching a session as
+ * HttpInterceptor does on every request, and finding the sessions of a user. The current
+ * {@link SessionRepository} against the former one ({@link LockedSessionRepository}), where a touch was a
+ * findById, an update of lastModified and a save under the write lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class SessionRepositoryBenchmark {
+
+    @Param({"1000", "100000"})
+    private int sessions;
+
+    private SessionRepository repository;
+    private LockedSessionRepository lockedRepository;
+    private String ids[];
+
+    @Setup
+    public void setup() {
+        repository = new SessionRepository();
+        Components.set(repository, "meterRegistry", new SimpleMeterRegistry());
+        Components.set(repository, "idleTimeout", 3600000L);
+        Components.set(repository, "tick", 60000L);
+        repository.init();
+        lockedRepository = new LockedSessionRepository();
+        ids = new String[sessions];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = "session" + i;
+            User user = new User();
+            user.setUsername("user" + i);
+            Session session = new Session(ids[i], null, now);
+            repository.save(session);
+            repository.setUser(session, user);
+            lockedRepository.save(new Session(ids[i], user, now));
+        }
+    }
+
+    @Benchmark
+    public Session touch() {
+        return repository.touch(ids[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+
+    @Benchmark
+    public Session lockedTouch() {
+        String id = ids[ThreadLocalRandom.current().nextInt(sessions)];
+        Session session = lockedRepository.findById(id).orElse(null);
+        if (session == null) {
+            session = new Session(id, null, System.currentTimeMillis());
+        }
+        session.setLastModified(System.currentTimeMillis());
+        lockedRepository.save(session);
+        return session;
+    }
+
+    @Benchmark
+    public List<Session> findByUsername() {
+        return repository.findByUsername("user" + ThreadLocalRandom.current().nextInt(sessions));
+    }
+
+    @Benchmark
+    public List<Session> lockedFindByUsername() {
+        return lockedRepository.findByUsername("user" + ThreadLocalRandom.current().nextInt(sessions));
+    }
+}
@@ -0,0 +1,91 @@
+package simplechat.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import simplechat.SimpleChatApplication;
+import simplechat.util.StaticAssets;
+import simplechat.util.Templates;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a page with the compiled {@link Templates} against the former ByteUtils.readPage, which read
+ * the file and scanned it for tags on every call. Runs from the project directory, the pages are read
+ * from res/html.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+
+    @Param({"/chat-msg-left.html", "/sidebar-entry.html", "/home.html"})
+    private String page;
+
+    private Templates templates;
+    private Map<String, String> params;
+
+    @Setup
+    public void setup() {
+        templates = new Templates();
+        Components.set(templates, "staticAssets", new StaticAssets());
+        params = new HashMap<>();
+        for (String name : new String[]{"body", "date", "dateStr", "id", "image", "onclick", "title", "pageTitle",
+                "classes", "count", "countStyle", "name", "username", "HeaderUserCaretSvgDisplay",
+                "headerAccountAction", "headerAccountClasses", "headerAccountText", "optionsSvg"}) {
+            params.put(name, "value of " + name);
+        }
+    }
+
+    @Benchmark
+    public String compiled() throws IOException {
+        return templates.render(page, params);
+    }
+
+    @Benchmark
+    public String interpreted() throws IOException {
+        return readPage(page, params);
+    }
+
+    /**
+     * ByteUtils.readPage before templates were compiled, asset tags are rendered as the plain name.
+     */
+    private static String readPage(String fileName, Map<String, String> params) throws IOException {
+        String page = new String(Files.readAllBytes(new File(SimpleChatApplication.pageResourcePath + fileName).toPath()), "UTF-8");
+        int si = 0, ei = -2;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int oei = ei;
+            si = page.indexOf("<%", ei + 2);
+            if (si < 0) {
+                break;
+            }
+            ei = page.indexOf("%>", si);
+            String cmd = page.substring(si + 2, ei).trim();
+            String rep;
+            switch (cmd.charAt(0)) {
+                case '$':
+                    rep = params.get(cmd.substring(1));
+                    break;
+                case '@':
+                    rep = cmd.substring(1);
+                    break;
+                case '#':
+                    rep = readPage("/" + cmd.substring(1), params);
+                    break;
+                default:
+                    throw new IOException("Invalid identifier");
+            }
+            sb.append(page, oei + 2, si);
+            sb.append(rep);
+        }
+        sb.append(page, ei + 2, page.length());
+        return sb.toString();
+    }
+}